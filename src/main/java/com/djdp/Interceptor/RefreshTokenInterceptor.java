@@ -5,7 +5,7 @@ import cn.hutool.core.util.StrUtil;
 import com.djdp.dto.UserDTO;
 import com.djdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -23,7 +23,7 @@ import static com.djdp.utils.RedisConstants.LOGIN_USER_TTL;
  * 原理：每一个进入tomcat的请求都是一个独立的线程，ThreadLocal开辟一个独立的内存空间来进行线程隔离，信息隔离
  */
 
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     /**
      * 这里不能使用Autowired注解或者是resource注解
@@ -67,4 +67,13 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
     public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) throws Exception {
         UserHolder.removeUser();
     }
+
+    /**
+     * 长轮询等异步请求：请求线程交还给tomcat时不会走afterCompletion，这里同样要清掉ThreadLocal，
+     * 异步结果派发回来时会重新执行preHandle
+     */
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,41 @@
+package com.djdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/14/09:30
+ * Version: 1.0
+ * Description:CacheClient本地一级缓存(L1)的配置，前缀为 cache.local
+ * 只有在ttl里配置了的key前缀才会进入L1，其余key仍然只走Redis
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "cache.local")
+public class LocalCacheProperties {
+
+    /**
+     * 是否启用L1
+     */
+    private boolean enabled = false;
+
+    /**
+     * 最多缓存的条目数
+     */
+    private long maximumSize = 10000;
+
+    /**
+     * 所有条目的总权重上限，权重按 key长度+序列化后的长度 估算，约等于字符数
+     */
+    private long maximumWeight = 64L * 1024 * 1024;
+
+    /**
+     * key前缀 -> 在L1中的有效期（毫秒），前缀里有冒号时yaml要写成 "[cache:shop:]"
+     */
+    private Map<String, Long> ttl = new HashMap<>();
+}
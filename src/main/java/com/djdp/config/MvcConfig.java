@@ -42,7 +42,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/v2/api-docs",
                         "/v3/api-docs",
                         "/webjars/**",
-                        "/doc.html"
+                        "/doc.html",
+                        "/actuator/**"
                 ).order(1);
 
         // token刷新的拦截器
@@ -0,0 +1,40 @@
+package com.djdp.config;
+
+import com.djdp.utils.LocalCache;
+import com.djdp.utils.OrderResultRegistry;
+import com.djdp.utils.SoldOutRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.djdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.djdp.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.djdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/03/09:55
+ * Version: 1.0
+ * Description:Redis发布订阅的监听容器，节点间的广播消息都在这里注册
+ */
+@Configuration
+public class RedisMessageConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       SoldOutRegistry soldOutRegistry,
+                                                                       OrderResultRegistry orderResultRegistry,
+                                                                       LocalCache localCache) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        //秒杀券售罄/补库存广播
+        container.addMessageListener(soldOutRegistry, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        //秒杀订单处理结果，唤醒长轮询
+        container.addMessageListener(orderResultRegistry, new ChannelTopic(SECKILL_RESULT_CHANNEL));
+        //缓存失效广播，删除本地一级缓存的副本
+        container.addMessageListener(localCache, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        return container;
+    }
+}
@@ -1,8 +1,11 @@
 package com.djdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.redisson.config.SingleServerConfig;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -10,15 +13,28 @@ import org.springframework.context.annotation.Configuration;
  * Author: JhonDai
  * Date: 2023/02/09/13:33
  * Version: 1.0
- * Description:
+ * Description:Redisson和StringRedisTemplate连同一个Redis，地址取自spring.redis
  */
 @Configuration
 public class RedissonConfig {
+
+    @Value("${spring.redis.host}")
+    private String host;
+
+    @Value("${spring.redis.port:6379}")
+    private int port;
+
+    @Value("${spring.redis.password:}")
+    private String password;
+
     @Bean
     public RedissonClient redissonClient(){
         //配置
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.220.18:6379").setPassword("admin");
+        SingleServerConfig serverConfig = config.useSingleServer().setAddress("redis://" + host + ":" + port);
+        if (StrUtil.isNotBlank(password)) {
+            serverConfig.setPassword(password);
+        }
         return Redisson.create(config);
     }
 }
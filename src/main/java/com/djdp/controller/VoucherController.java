@@ -8,6 +8,8 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 
+import static com.djdp.utils.SystemConstants.MAX_USER_QUOTA;
+
 /**
  * <p>
  *  前端控制器
@@ -41,6 +43,10 @@ public class VoucherController {
      */
     @PostMapping("seckill")
     public Result addSeckillVoucher(@RequestBody Voucher voucher) {
+        Integer quota = voucher.getUserQuota();
+        if (quota != null && (quota < 1 || quota > MAX_USER_QUOTA)) {
+            return Result.fail("每人限购数量必须在1~" + MAX_USER_QUOTA + "之间");
+        }
         voucherService.addSeckillVoucher(voucher);
         return Result.ok(voucher.getId());
     }
@@ -3,10 +3,8 @@ package com.djdp.controller;
 
 import com.djdp.dto.Result;
 import com.djdp.service.IVoucherOrderService;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.PostMapping;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -29,4 +27,15 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return iVoucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的异步处理结果
+     * @param orderId 秒杀接口返回的订单id
+     * @param wait 长轮询等待的毫秒数，订单还在排队时最多挂起这么久，0表示立即返回
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Long wait) {
+        return iVoucherOrderService.queryOrderStatus(orderId, wait);
+    }
 }
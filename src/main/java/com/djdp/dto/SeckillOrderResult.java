@@ -0,0 +1,23 @@
+package com.djdp.dto;
+
+import com.djdp.enums.SeckillOrderStatus;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 秒杀订单的处理结果
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SeckillOrderResult {
+    private Long orderId;
+    private Long userId;
+    private Integer status;
+    private String desc;
+
+    public SeckillOrderResult(Long orderId, Long userId, SeckillOrderStatus status) {
+        this(orderId, userId, status.getCode(), status.getDesc());
+    }
+}
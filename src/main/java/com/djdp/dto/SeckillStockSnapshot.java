@@ -0,0 +1,22 @@
+package com.djdp.dto;
+
+import lombok.Data;
+
+/**
+ * 秒杀券在Redis中的库存快照（各分段合计）
+ */
+@Data
+public class SeckillStockSnapshot {
+    /**
+     * 库存分段数
+     */
+    private int segments;
+    /**
+     * 剩余库存
+     */
+    private long remaining;
+    /**
+     * 已购用户数
+     */
+    private long buyers;
+}
@@ -52,6 +52,16 @@ public class SeckillVoucher implements Serializable {
      */
     private LocalDateTime endTime;
 
+    /**
+     * 已购用户去重结构 0 集合 1 位图 2 布隆过滤器
+     */
+    private Integer buyerDedupe;
+
+    /**
+     * 每人限购数量
+     */
+    private Integer userQuota;
+
     /**
      * 更新时间
      */
@@ -90,6 +90,18 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private LocalDateTime endTime;
 
+    /**
+     * 已购用户去重结构 0 集合 1 位图 2 布隆过滤器
+     */
+    @TableField(exist = false)
+    private Integer buyerDedupe;
+
+    /**
+     * 每人限购数量，不填为1
+     */
+    @TableField(exist = false)
+    private Integer userQuota;
+
     /**
      * 创建时间
      */
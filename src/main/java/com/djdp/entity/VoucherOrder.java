@@ -26,6 +26,16 @@ public class VoucherOrder implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * 订单状态：未支付
+     */
+    public static final int STATUS_UNPAID = 1;
+
+    /**
+     * 订单状态：已取消
+     */
+    public static final int STATUS_CANCELLED = 4;
+
     /**
      * 主键
      */
@@ -42,6 +52,11 @@ public class VoucherOrder implements Serializable {
      */
     private Long voucherId;
 
+    /**
+     * 该用户在这张券上的第几份，1~每人限购数量，由seckill.lua分配
+     */
+    private Integer seq;
+
     /**
      * 支付方式 1：余额支付；2：支付宝；3：微信
      */
@@ -0,0 +1,63 @@
+package com.djdp.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/12/14:30
+ * Version: 1.0
+ * Description:秒杀券已购用户的去重结构，按券配置（tb_seckill_voucher.buyer_dedupe），写入 seckill:window 的 dedupe 字段供seckill.lua读取
+ * SET/BITMAP/BLOOM 只能表示买没买过，用于每人限购1份的券；限购多份的券固定使用QUOTA，记录每人已占用的份数序号。
+ * 分段库存下这些结构都只记在用户的首选分段（userId % 分段数），不管在哪个分段扣到库存，去重和限购都按同一份记录判断
+ */
+@AllArgsConstructor
+@Getter
+public enum BuyerDedupeMode {
+
+    /**
+     * SET，每个用户id一个成员，精确但内存最大
+     */
+    SET(0, "集合"),
+
+    /**
+     * 位图，以数字用户id为偏移量，精确；内存取决于最大用户id，适合自增的用户id（不超过2^32-1）
+     */
+    BITMAP(1, "位图"),
+
+    /**
+     * 按库存量确定大小的布隆过滤器，内存最小；命中时可能误判，由数据库订单表再核对一次
+     */
+    BLOOM(2, "布隆过滤器"),
+
+    /**
+     * HASH 用户id -> 已占用份数的位掩码，每人限购数量大于1时自动使用，不需要配置；
+     * 取消订单释放对应序号的位，用户可以再买一份，订单表按 (voucher_id, user_id, seq, active) 唯一
+     */
+    QUOTA(3, "限购计数");
+
+    /**
+     * 编码
+     */
+    private final Integer code;
+
+    /**
+     * 描述
+     */
+    private final String desc;
+
+    /**
+     * 没有配置的券按SET处理
+     */
+    public static BuyerDedupeMode of(Integer code) {
+        if (code == null) {
+            return SET;
+        }
+        for (BuyerDedupeMode mode : values()) {
+            if (mode.code.equals(code)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("未知的去重结构: " + code);
+    }
+}
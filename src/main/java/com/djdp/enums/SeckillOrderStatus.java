@@ -0,0 +1,54 @@
+package com.djdp.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/04/10:20
+ * Version: 1.0
+ * Description:秒杀订单的异步处理结果，对应Redis结果记录 seckill:result:{orderId} 中的状态码
+ */
+@AllArgsConstructor
+@Getter
+public enum SeckillOrderStatus {
+
+    /**
+     * 已抢到资格，订单还在队列中等待落库
+     */
+    PENDING(0, "排队中"),
+
+    /**
+     * 订单已落库
+     */
+    SUCCESS(1, "下单成功"),
+
+    /**
+     * 订单被拒绝（重复下单、库存不足或多次处理失败）
+     */
+    FAILED(2, "下单失败"),
+
+    /**
+     * 订单已落库，但超时未支付被取消
+     */
+    CANCELLED(3, "已取消");
+
+    /**
+     * 状态码
+     */
+    private final Integer code;
+
+    /**
+     * 描述
+     */
+    private final String desc;
+
+    public static SeckillOrderStatus of(int code) {
+        for (SeckillOrderStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        throw new IllegalArgumentException("未知的订单状态: " + code);
+    }
+}
@@ -34,6 +34,11 @@ public enum StateCodeEnum {
      */
     FAIL(51000, "操作失败"),
 
+    /**
+     * 请求过于频繁
+     */
+    TOO_MANY_REQUESTS(42900, "请求过于频繁，请稍后再试"),
+
     /**
      * 参数校验失败
      */
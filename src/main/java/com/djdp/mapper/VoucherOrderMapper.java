@@ -2,6 +2,9 @@ package com.djdp.mapper;
 
 import com.djdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多值INSERT IGNORE批量写入订单，违反唯一索引uk_voucher_user(voucher_id, user_id, seq, active)的行被忽略，
+     * 即同一用户同一份数序号已有有效订单；已取消订单的active为NULL，不参与唯一性判断
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -1,5 +1,6 @@
 package com.djdp.service;
 
+import com.djdp.dto.SeckillStockSnapshot;
 import com.djdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -13,4 +14,34 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀库存写入Redis，库存达到分段阈值时拆成多个分段
+     */
+    void cacheSeckillStock(SeckillVoucher seckillVoucher);
+
+    /**
+     * 预热：券还没有加载到Redis时，按数据库剩余库存加载并恢复已购用户；已加载的不做任何修改
+     * @return 是否真正执行了加载
+     */
+    boolean prewarmSeckillStock(SeckillVoucher seckillVoucher);
+
+    /**
+     * 读取Redis中各分段库存和已购用户数的合计，券没有加载到Redis时返回null
+     */
+    SeckillStockSnapshot getRedisStockSnapshot(Long voucherId);
+
+    /**
+     * 以订单表为准的应有库存：Redis初始库存（剩余+已售）减去已落库的订单数
+     */
+    long reconciledStock(SeckillStockSnapshot snapshot, long soldInDb);
+
+    /**
+     * 收尾：把Redis里的售卖结果对账回数据库库存，并释放这张券在Redis中的所有key
+     */
+    void closeSeckillStock(Long voucherId);
+
+    /**
+     * 查询秒杀券在Redis中的库存分段数，普通模式为1
+     */
+    int getStockSegments(Long voucherId);
 }
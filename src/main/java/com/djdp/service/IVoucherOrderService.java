@@ -3,6 +3,9 @@ package com.djdp.service;
 import com.djdp.dto.Result;
 import com.djdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -17,4 +20,14 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucherOrder(VoucherOrder voucherOrder);
+
+    void createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long wait);
+
+    /**
+     * 取消其中仍未支付的订单，退回库存
+     * @return 实际取消的订单
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
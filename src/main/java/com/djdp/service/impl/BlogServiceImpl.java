@@ -8,26 +8,34 @@ import com.djdp.dto.ScrollResult;
 import com.djdp.dto.UserDTO;
 import com.djdp.entity.Blog;
 import com.djdp.entity.Follow;
-import com.djdp.entity.User;
 import com.djdp.mapper.BlogMapper;
 import com.djdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.djdp.service.IFollowService;
 import com.djdp.service.IUserService;
+import com.djdp.utils.CacheClient;
+import com.djdp.utils.IdBloomFilter;
 import com.djdp.utils.SystemConstants;
 import com.djdp.utils.UserHolder;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static com.djdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.djdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.djdp.utils.RedisConstants.CACHE_BLOG_TTL;
+import static com.djdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.djdp.utils.RedisConstants.CACHE_USER_TTL;
 import static com.djdp.utils.RedisConstants.FEED_KEY;
 
 /**
@@ -49,6 +57,17 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @PostConstruct
+    private void registerBloomFilter() {
+        idBloomFilter.register(CACHE_BLOG_KEY, "blog", IdBloomFilter.IdSource.of(this));
+    }
+
     @Override
     public Result queryHotBlogById(Integer current) {
 
@@ -59,31 +78,46 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 获取当前页数据
         List<Blog> records = page.getRecords();
         // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isBlogLiked(blog);
-        });
+        queryBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    /**
+     * 批量查询笔记作者：一次MGET，缓存里没有的一次IN查询，不再每篇笔记查一次用户
+     * 应用里没有修改昵称、头像的写路径，作者缓存不做主动失效，库里直接改的数据最多CACHE_USER_TTL分钟后生效
+     */
+    private void queryBlogUsers(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = cacheClient.queryBatchWithPassThrough(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
     }
 
     @Override
     public Result queryBlogById(Long id) {
 
-        //1.查询blog
-        Blog blog = getById(id);
+        //1.查询blog，不存在的id由布隆过滤器挡在数据库前面
+        //cache:blog:不走本地缓存，每次取到的是新对象，可以直接填充作者和点赞信息
+        Blog blog = cacheClient.queryWithPassThrough(CACHE_BLOG_KEY, id, Blog.class, this::getById, CACHE_BLOG_TTL, TimeUnit.MINUTES);
 
         if (blog==null){
             return Result.fail("笔记不存在");
         }
         //2.查询用户
-        queryBlogUser(blog);
+        queryBlogUsers(Collections.singletonList(blog));
 
         //3.查询blog是否被点赞
         isBlogLiked(blog);
@@ -121,6 +155,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //保存到redis的set集合 zadd
             if (isSuccess){
                 stringRedisTemplate.opsForZSet().add(key,userId.toString(),System.currentTimeMillis());
+                cacheClient.invalidate(CACHE_BLOG_KEY + id);
             }
         }else {
             //如果已经点赞，取消点赞
@@ -129,6 +164,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             //把用户从redis的set集合移除
             if (isSuccess){
                 stringRedisTemplate.opsForZSet().remove(key,userId.toString());
+                cacheClient.invalidate(CACHE_BLOG_KEY + id);
             }
         }
 
@@ -174,6 +210,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         if (!isSuccess) {
             return Result.fail("新增笔记失败");
         }
+        idBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
         //3.查询笔记作者的所有粉丝 知识点：直接使用list mp的底层使用的是in而不是顺序的
         List<Follow> follows = followService.query().eq("follow_user_id", user.getId()).list();
         //4.推送笔记id给所有粉丝
@@ -233,9 +270,9 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         //如果直接使用mp的list的话其底层是使用in 来进行查询的，会导致其查询出来的结果不是按照id顺序排序的
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
 
+        // 5.1.批量查询blog有关的用户
+        queryBlogUsers(blogs);
         for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            queryBlogUser(blog);
             // 5.2.查询blog是否被点赞
             isBlogLiked(blog);
         }
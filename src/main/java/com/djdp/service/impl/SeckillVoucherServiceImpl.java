@@ -1,11 +1,38 @@
 package com.djdp.service.impl;
 
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.util.BooleanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.djdp.dto.SeckillStockSnapshot;
 import com.djdp.entity.SeckillVoucher;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.BuyerDedupeMode;
 import com.djdp.mapper.SeckillVoucherMapper;
+import com.djdp.mapper.VoucherOrderMapper;
 import com.djdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.djdp.utils.BuyerBloomFilter;
+import com.djdp.utils.SeckillKeys;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static com.djdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +41,259 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    /**
+     * 库存分段数，每个分段的库存和订单集合是独立的key，可以分散到不同的分片上
+     */
+    @Value("${seckill.segment.buckets:8}")
+    private int buckets;
+
+    /**
+     * 库存达到该值才启用分段，小于等于0表示关闭分段模式
+     */
+    @Value("${seckill.segment.threshold:0}")
+    private int threshold;
+
+    /**
+     * 优惠券id -> 分段数，券创建后分段数不会再变，本地缓存避免每次秒杀都多查一次Redis
+     */
+    private final Map<Long, Integer> segmentsCache = new ConcurrentHashMap<>();
+
+    /**
+     * 布隆过滤器去重的期望误判率，误判的请求会多查一次订单表
+     */
+    @Value("${seckill.dedupe.bloom-fpp:0.001}")
+    private double bloomFpp;
+
+    /**
+     * 布隆过滤器去重时最近买家精确标记的有效期（秒），要比订单从入队到落库的时间长，
+     * 期间的重复请求直接拦下，之后的命中再查订单表核对
+     */
+    @Value("${seckill.dedupe.bloom-recent-ttl:120}")
+    private long bloomRecentTtl;
+
+    @Override
+    public void cacheSeckillStock(SeckillVoucher seckillVoucher) {
+        cacheSeckillStock(seckillVoucher, Collections.emptyList());
+    }
+
+    /**
+     * @param buyers 已经下过单的用户（userId和seq），预热时从订单表恢复，放进各自的首选分段
+     */
+    private void cacheSeckillStock(SeckillVoucher seckillVoucher, List<VoucherOrder> buyers) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        int segments = threshold > 0 && buckets > 1 && stock >= threshold ? buckets : 1;
+        int quota = seckillVoucher.getUserQuota() == null ? 1 : seckillVoucher.getUserQuota();
+        //限购多份时只能用限购计数，位图和布隆过滤器只能表示买没买过
+        BuyerDedupeMode dedupe = quota > 1 ? BuyerDedupeMode.QUOTA : BuyerDedupeMode.of(seckillVoucher.getBuyerDedupe());
+        Map<Integer, List<VoucherOrder>> buyersOfBucket = buyers.stream()
+                .collect(Collectors.groupingBy(buyer -> (int) (buyer.getUserId() % segments)));
+        Map<String, String> window = seckillWindow(seckillVoucher);
+        //库存均分到各分段，余数分给前几个分段；每个分段各写一份时间窗口和去重结构，让脚本只访问同一个slot
+        for (int bucket = 0; bucket < segments; bucket++) {
+            int bucketStock = stock / segments + (bucket < stock % segments ? 1 : 0);
+            List<VoucherOrder> bucketBuyers = buyersOfBucket.getOrDefault(bucket, Collections.emptyList());
+            Map<String, String> meta = new HashMap<>(window);
+            if (dedupe == BuyerDedupeMode.QUOTA) {
+                meta.put("quota", String.valueOf(quota));
+            }
+            //恢复已购用户，避免Redis被清空后同一用户再次抢到
+            restoreBuyers(SeckillKeys.orderKey(voucherId, bucket, segments), dedupe, bucketStock, bucketBuyers, meta);
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucherId, bucket, segments), String.valueOf(bucketStock));
+            if (!meta.isEmpty()) {
+                stringRedisTemplate.opsForHash().putAll(SeckillKeys.windowKey(voucherId, bucket, segments), meta);
+            }
+        }
+        //分段数最后写入，它同时也是"这张券已加载到Redis"的标记
+        stringRedisTemplate.opsForValue().set(SECKILL_SEGMENTS_KEY + voucherId, String.valueOf(segments));
+        segmentsCache.put(voucherId, segments);
+    }
+
+    /**
+     * 按券配置的去重结构写入已购用户，位图和布隆过滤器的参数、已售份数记在meta里和时间窗口一起写入
+     * 布隆过滤器按 分段库存+已购人数 确定大小：买家记在首选分段，用户id取模大体均匀，一个分段的买家和分段库存相当，
+     * 偏多时只是误判率升高，误判由订单表核对；恢复的买家都已落库，不需要最近买家标记
+     */
+    private void restoreBuyers(String orderKey, BuyerDedupeMode dedupe, int bucketStock,
+                               List<VoucherOrder> buyers, Map<String, String> meta) {
+        if (dedupe == BuyerDedupeMode.SET) {
+            for (List<VoucherOrder> part : CollUtil.split(buyers, 1000)) {
+                stringRedisTemplate.opsForSet().add(orderKey,
+                        part.stream().map(buyer -> buyer.getUserId().toString()).toArray(String[]::new));
+            }
+            return;
+        }
+        meta.put("dedupe", dedupe.getCode().toString());
+        meta.put("buyers", String.valueOf(buyers.size()));
+        if (dedupe == BuyerDedupeMode.QUOTA) {
+            //用户id -> 已占用份数的位掩码，第seq份对应第seq-1位
+            Map<String, String> masks = buyers.stream().collect(Collectors.groupingBy(buyer -> buyer.getUserId().toString(),
+                    Collectors.reducing(0, buyer -> 1 << ((buyer.getSeq() == null ? 1 : buyer.getSeq()) - 1), (a, b) -> a | b)))
+                    .entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().toString()));
+            for (List<String> part : CollUtil.split(masks.keySet(), 1000)) {
+                stringRedisTemplate.opsForHash().putAll(orderKey,
+                        part.stream().collect(Collectors.toMap(userId -> userId, masks::get)));
+            }
+            return;
+        }
+        long bits = 0;
+        int hashes = 0;
+        if (dedupe == BuyerDedupeMode.BLOOM) {
+            long expected = (long) bucketStock + buyers.size();
+            bits = BuyerBloomFilter.optimalBits(expected, bloomFpp);
+            hashes = BuyerBloomFilter.optimalHashes(expected, bits);
+            meta.put("bloomBits", String.valueOf(bits));
+            meta.put("bloomHashes", String.valueOf(hashes));
+            meta.put("bloomRecentTtl", String.valueOf(bloomRecentTtl));
+        }
+        byte[] key = orderKey.getBytes(StandardCharsets.UTF_8);
+        for (List<VoucherOrder> part : CollUtil.split(buyers, 1000)) {
+            long finalBits = bits;
+            int finalHashes = hashes;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (VoucherOrder buyer : part) {
+                    Long userId = buyer.getUserId();
+                    long[] offsets = dedupe == BuyerDedupeMode.BITMAP
+                            ? new long[]{userId} : BuyerBloomFilter.offsets(userId, finalBits, finalHashes);
+                    for (long offset : offsets) {
+                        connection.setBit(key, offset, true);
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    @Override
+    public boolean prewarmSeckillStock(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        if (BooleanUtil.isTrue(stringRedisTemplate.hasKey(SECKILL_SEGMENTS_KEY + voucherId))) {
+            //已经在Redis中，不能覆盖正在扣减的库存
+            return false;
+        }
+        //以数据库中的剩余库存为准，已落库且没有取消的购买记录一并恢复
+        List<VoucherOrder> buyers = voucherOrderMapper.selectList(new QueryWrapper<VoucherOrder>()
+                .select("user_id", "seq").eq("voucher_id", voucherId).ne("status", VoucherOrder.STATUS_CANCELLED));
+        cacheSeckillStock(seckillVoucher, buyers);
+        return true;
+    }
+
+    @Override
+    public SeckillStockSnapshot getRedisStockSnapshot(Long voucherId) {
+        String segmentsValue = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        if (segmentsValue == null) {
+            return null;
+        }
+        int segments = Integer.parseInt(segmentsValue);
+        //各分段的 GET stock 和 去重结构、已购人数 在一个pipeline里完成
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int bucket = 0; bucket < segments; bucket++) {
+                connection.get(SeckillKeys.stockKey(voucherId, bucket, segments).getBytes(StandardCharsets.UTF_8));
+                connection.hMGet(SeckillKeys.windowKey(voucherId, bucket, segments).getBytes(StandardCharsets.UTF_8),
+                        "dedupe".getBytes(StandardCharsets.UTF_8), "buyers".getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+        SeckillStockSnapshot snapshot = new SeckillStockSnapshot();
+        snapshot.setSegments(segments);
+        List<Integer> setBuckets = new ArrayList<>();
+        for (int i = 0; i < results.size(); i += 2) {
+            Object stock = results.get(i);
+            List<?> meta = (List<?>) results.get(i + 1);
+            snapshot.setRemaining(snapshot.getRemaining() + (stock == null ? 0 : Long.parseLong(stock.toString())));
+            if (meta.get(0) == null) {
+                setBuckets.add(i / 2);
+            } else if (meta.get(1) != null) {
+                //位图和布隆过滤器没法数出成员，已购人数由脚本计数
+                snapshot.setBuyers(snapshot.getBuyers() + Long.parseLong(meta.get(1).toString()));
+            }
+        }
+        if (!setBuckets.isEmpty()) {
+            List<Object> cards = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Integer bucket : setBuckets) {
+                    connection.sCard(SeckillKeys.orderKey(voucherId, bucket, segments).getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            for (Object buyers : cards) {
+                snapshot.setBuyers(snapshot.getBuyers() + (buyers == null ? 0 : (Long) buyers));
+            }
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void closeSeckillStock(Long voucherId) {
+        SeckillStockSnapshot snapshot = getRedisStockSnapshot(voucherId);
+        if (snapshot == null) {
+            return;
+        }
+        long soldInDb = voucherOrderMapper.selectCount(new QueryWrapper<VoucherOrder>()
+                .eq("voucher_id", voucherId).ne("status", VoucherOrder.STATUS_CANCELLED));
+        if (snapshot.getBuyers() != soldInDb) {
+            log.warn("秒杀结束对账不一致, voucherId={}, Redis已售={}, 订单表已售={}", voucherId, snapshot.getBuyers(), soldInDb);
+        }
+        update().set("stock", reconciledStock(snapshot, soldInDb)).eq("voucher_id", voucherId).update();
+        //释放Redis中这张券的所有key
+        int segments = snapshot.getSegments();
+        List<String> keys = new ArrayList<>(segments * 3 + 1);
+        for (int bucket = 0; bucket < segments; bucket++) {
+            keys.add(SeckillKeys.stockKey(voucherId, bucket, segments));
+            keys.add(SeckillKeys.orderKey(voucherId, bucket, segments));
+            keys.add(SeckillKeys.windowKey(voucherId, bucket, segments));
+        }
+        keys.add(SECKILL_SEGMENTS_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+        segmentsCache.remove(voucherId);
+    }
+
+    @Override
+    public long reconciledStock(SeckillStockSnapshot snapshot, long soldInDb) {
+        //Redis里 剩余+已售 就是初始库存，真正卖出去的以订单表为准，差额（如进了死信的订单）退回库存
+        return snapshot.getRemaining() + snapshot.getBuyers() - soldInDb;
+    }
+
+    /**
+     * 秒杀时间窗口 begin/end 的毫秒时间戳，由seckill.lua在Redis里原子校验
+     */
+    private Map<String, String> seckillWindow(SeckillVoucher seckillVoucher) {
+        Map<String, String> window = new HashMap<>(2);
+        if (seckillVoucher.getBeginTime() != null) {
+            window.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        }
+        if (seckillVoucher.getEndTime() != null) {
+            window.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        }
+        return window;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public int getStockSegments(Long voucherId) {
+        Integer segments = segmentsCache.get(voucherId);
+        if (segments != null) {
+            return segments;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        if (value == null) {
+            //券还没有加载到Redis，不缓存，按普通模式处理（库存key不存在，脚本会返回库存不足）
+            return 1;
+        }
+        segments = Integer.valueOf(value);
+        segmentsCache.put(voucherId, segments);
+        return segments;
+    }
 }
@@ -10,10 +10,12 @@ import com.djdp.mapper.ShopMapper;
 import com.djdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.djdp.utils.CacheClient;
+import com.djdp.utils.IdBloomFilter;
 import com.djdp.utils.RedisData;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
@@ -43,6 +45,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @PostConstruct
+    private void registerBloomFilter() {
+        idBloomFilter.register(CACHE_SHOP_KEY, "shop", IdBloomFilter.IdSource.of(this));
+    }
+
     @Override
     public Result queryById(Long id) {
 
@@ -61,6 +71,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public Result saveShop(Shop shop) {
+        save(shop);
+        //新店铺加入布隆过滤器，否则重建之前会被当成不存在
+        idBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result update(Shop shop) {
         if (shop.getId() == null) {
@@ -68,8 +86,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //先更新数据库
         updateById(shop);
-        //后删除redis缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + shop.getId());
+        //店铺走逻辑过期，删掉缓存会被当成不存在：用更新后的数据覆盖redis缓存，再广播让各节点删除本地缓存
+        Shop fresh = getById(shop.getId());
+        if (fresh != null) {
+            cacheClient.refreshWithLogicalExpire(CACHE_SHOP_KEY + shop.getId(), fresh, CACHE_SHOP_TTL, TimeUnit.SECONDS);
+        }
 
         return Result.ok();
     }
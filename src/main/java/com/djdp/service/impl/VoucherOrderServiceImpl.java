@@ -1,32 +1,49 @@
 package com.djdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.djdp.dto.Result;
+import com.djdp.dto.SeckillOrderResult;
 import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.SeckillOrderStatus;
+import com.djdp.enums.StateCodeEnum;
 import com.djdp.mapper.VoucherOrderMapper;
 import com.djdp.service.ISeckillVoucherService;
 import com.djdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.djdp.utils.RedisIdWorker;
+import com.djdp.utils.IdGenerator;
+import com.djdp.utils.OrderResultRegistry;
+import com.djdp.utils.RedisScriptRegistry;
+import com.djdp.utils.SeckillKeys;
+import com.djdp.utils.SeckillRateLimiter;
+import com.djdp.utils.SoldOutRegistry;
+import com.djdp.utils.UnpaidOrderQueue;
 import com.djdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static com.djdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
 
 /**
  * <p>
@@ -45,105 +62,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private ISeckillVoucherService seckillVoucherService;
+    /**
+     * 订单id生成器，id.mode=snowflake 时为本地雪花算法，否则为RedisIdWorker
+     */
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     
     @Resource
     private RedissonClient redissonClient;
 
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-    //在当前类初始化完毕后开始执行
-    @PostConstruct
-    private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
-
-    /**
-     * 获取消息队列的订单信息
-     */
-    private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
-        @Override
-        public void run() {
-
-
-            while (true){
-                try {
-                    //1.获取订单信息   XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            //面向对象的思想
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    //解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object,Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value,new VoucherOrder(),true);
-
-                    //如果获取成功，可以下单
-                    createVoucherOrder(voucherOrder);
-                    //ACK确认  SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                    
-
-                } catch (Exception e) {
-                    log.error("处理订单异常",e);
-                    handlePendingList();
-                }
-            }
-        }
-        private void handlePendingList() {
-
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为pengding-list，说明没有异常消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-                    createVoucherOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                }
-            }
-        }
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
 
-    }
+    @Resource
+    private OrderResultRegistry orderResultRegistry;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
 
+    @Resource
+    private UnpaidOrderQueue unpaidOrderQueue;
 
+    /**
+     * 订单stream的分区总数，必须和所有节点保持一致，秒杀下单时按优惠券id取模路由
+     */
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
 
     /*
     private BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
@@ -194,33 +141,124 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     public Result seckillVoucher(Long voucherId) {
 
+        // 0.本地已标记售罄的直接拒绝，不用再走Redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId = UserHolder.getUser().getId();
+        // 0.1.令牌桶限流，被限流的请求不生成订单id
+        if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            return Result.fail(StateCodeEnum.TOO_MANY_REQUESTS.getDesc());
+        }
         //获取订单
-        long orderId = redisIdWorker.nextId("order");
-        // 1.执行lua脚本 ::变化：传参加了一个orderId 因此我们要提前船舰订单
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString(),String.valueOf(orderId)//不同类型的字符串转换
-        );
+        long orderId = idGenerator.nextId("order");
+        // 1.在用户的首选分段执行lua脚本：校验时间窗口、去重/限购，扣库存并记下用户
+        // 分段模式下首选分段卖完了先占位，再依次去其他分段扣库存；已购用户和限购份数始终记在首选分段
+        int segments = seckillVoucherService.getStockSegments(voucherId);
+        int homeBucket = (int) (userId % segments);
+        List<?> result = executeSeckillScript(voucherId, userId, homeBucket, segments, false);
+        int r = ((Long) result.get(0)).intValue();
+        if (r == 5) {
+            // 1.1.布隆过滤器命中可能是误判，以订单表为准；刚下单还没落库的由脚本里的最近买家标记拦下，唯一索引兜底
+            if (hasPurchased(voucherId, userId)) {
+                r = 2;
+            } else {
+                result = executeSeckillScript(voucherId, userId, homeBucket, segments, true);
+                r = ((Long) result.get(0)).intValue();
+            }
+        }
+        int seq = r == 0 || r == 7 ? ((Long) result.get(1)).intValue() : 1;
+        if (r == 7) {
+            // 1.2.其他分段各是一次单key脚本，在各自的slot上执行；都没有库存时释放占位
+            r = takeSiblingStock(voucherId, homeBucket, segments) ? 0 : 1;
+            if (r == 1) {
+                releaseSeckill(voucherId, segments, Collections.singletonList(new VoucherOrder().setUserId(userId).setSeq(seq)), false);
+            }
+        }
 
 
-        int r = result.intValue();
         // 2.判断结果是否为0
+        if (r == 1) {
+            // 2.1.所有分段库存不足，打上售罄标记并广播
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r!=0){
-            // 2.1.不为0则返回异常信息
-            return Result.fail(result==1?"库存不足":"不能重复下单");
+            // 2.2.不为0则返回异常信息
+            return Result.fail(seckillFailMessage(r));
         }
 
-
+        // 3.写入排队中的结果记录，再把订单消息发到stream；这两个key不和库存在同一个slot，不能放进脚本
+        try {
+            orderResultRegistry.recordPending(orderId, userId);
+            Map<String, String> message = new HashMap<>(4);
+            message.put("userId", userId.toString());
+            message.put("voucherId", voucherId.toString());
+            message.put("id", String.valueOf(orderId));
+            message.put("seq", String.valueOf(seq));
+            // 按优惠券id取模路由到分区，同一张券的订单始终由同一个消费者串行落库
+            stringRedisTemplate.opsForStream().add(StreamRecords.string(message)
+                    .withStreamKey(STREAM_ORDERS_KEY + voucherId % partitions));
+        } catch (RuntimeException e) {
+            // 入队失败把名额还回去；还回也失败时由对账发现 Redis已购 多于订单表
+            releaseSeckill(voucherId, segments, Collections.singletonList(new VoucherOrder().setUserId(userId).setSeq(seq)), true);
+            throw e;
+        }
 
         //获取代理对象（事务）
         proxy = (IVoucherOrderService) AopContext.currentProxy();
 
-        // 3.返回订单队列
+        // 4.返回订单队列
         return Result.ok(orderId);
     }
 
+    private List<?> executeSeckillScript(Long voucherId, Long userId, int homeBucket, int segments, boolean skipDedupe) {
+        List<String> keys = SeckillKeys.bucketKeys(voucherId, homeBucket, segments);
+        keys.add(SeckillKeys.buyerKey(voucherId, homeBucket, segments, userId));
+        return scriptRegistry.execute("seckill", List.class, keys,
+                userId.toString(), skipDedupe ? "1" : "0", segments > 1 ? "1" : "0");
+    }
+
+    /**
+     * 从首选分段的下一个分段开始依次扣一份库存
+     * @return 是否扣到
+     */
+    private boolean takeSiblingStock(Long voucherId, int homeBucket, int segments) {
+        for (int i = 1; i < segments; i++) {
+            String stockKey = SeckillKeys.stockKey(voucherId, (homeBucket + i) % segments, segments);
+            Long taken = scriptRegistry.execute("seckillstock", Collections.singletonList(stockKey));
+            if (taken != null && taken == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 走 uk_voucher_user 唯一索引，已取消的订单不算
+     */
+    private boolean hasPurchased(Long voucherId, Long userId) {
+        return query().eq("voucher_id", voucherId).eq("user_id", userId)
+                .ne("status", VoucherOrder.STATUS_CANCELLED).count() > 0;
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始！";
+            case 4:
+                return "秒杀已经结束！";
+            case 6:
+                return "已达到每人限购数量";
+            default:
+                return "秒杀失败";
+        }
+    }
+
     /*
 
     @Override
@@ -279,27 +317,35 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Transactional
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //5.一人一单
-        Long userId= voucherOrder.getUserId();
-        //5.1 查询订单
-        long count = query().eq("user_id",userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        //5.2 判断该用户是否已经抢购过了优惠券（一人一单）
-        if (count > 0){
+        //5.一人一单/每人限购：由唯一索引(voucher_id, user_id, seq, active)保证，不再先count再插入
+        //  seq是seckill.lua分配的第几份(1~限购数)，取消的订单active为NULL，不占用索引
+        //5.1 INSERT IGNORE 影响行数为0说明该用户的这一份(seq)已经被占用（或同一订单重复投递），每人最多quota个seq，行数就不会超过限购数
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        //5.2 判断该用户是否已经抢购过了优惠券（一人一单/每人限购）
+        if (inserted == 0){
+            //同一订单重复投递时订单已经在库里了，仍然算成功
+            if (getById(voucherOrder.getId()) != null) {
+                orderResultRegistry.record(voucherOrder, SeckillOrderStatus.SUCCESS);
+                unpaidOrderQueue.schedule(Collections.singletonList(voucherOrder));
+                return ;
+            }
             log.error("用户已经购买过一次");
+            orderResultRegistry.record(voucherOrder, SeckillOrderStatus.FAILED);
             return ;
         }
 
         //5.3扣减库存
-        boolean success = seckillVoucherService.update()
-                .setSql("stock= stock - 1")
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0)
-                .update();
+        boolean success = deductStock(voucherOrder.getVoucherId(), 1);
         if (!success) {
-            //扣减库存
+            //库存不足，撤销刚插入的订单
             log.error("库存不足");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            orderResultRegistry.record(voucherOrder, SeckillOrderStatus.FAILED);
             return ;
         }
-        save(voucherOrder);
+        orderResultRegistry.record(voucherOrder, SeckillOrderStatus.SUCCESS);
+        //5.4进入未支付延迟队列，超时未支付自动取消
+        unpaidOrderQueue.schedule(Collections.singletonList(voucherOrder));
 
        /* //6.创建订单
         VoucherOrder voucherOrder = new VoucherOrder();
@@ -321,6 +367,182 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
 
+    /**
+     * 批量下单：按优惠券分组，每张券一条多值INSERT IGNORE写入订单，
+     * 一人一单/每人限购由唯一索引(voucher_id, user_id, seq, active)保证（批内重复、整批重投都会被忽略），再按实际插入的行数合并扣减一次库存
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            //1.多值INSERT IGNORE，已经买过的用户被唯一索引忽略
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted < orders.size()) {
+                log.error("用户已经购买过一次, voucherId={}, 忽略{}单", voucherId, orders.size() - inserted);
+                unpaidOrderQueue.schedule(recordIgnoredBatch(orders));
+            } else {
+                orders.forEach(voucherOrder -> orderResultRegistry.record(voucherOrder, SeckillOrderStatus.SUCCESS));
+                unpaidOrderQueue.schedule(orders);
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            //2.合并扣减库存 stock = stock - k
+            //2.1 扣减失败说明库存和Redis出现了偏差，整批回滚，由消费者逐单重试，能下多少下多少
+            if (!deductStock(voucherId, inserted)) {
+                throw new IllegalStateException("库存不足, voucherId=" + voucherId + ", 本批订单数=" + inserted);
+            }
+        }
+    }
+
+    /**
+     * 批内有订单被忽略时按主键查一次：在库里的（本次插入或之前已重复投递落库）算成功，其余是重复下单
+     * @return 在库里的订单
+     */
+    private List<VoucherOrder> recordIgnoredBatch(List<VoucherOrder> orders) {
+        Set<Long> persisted = listByIds(orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> succeeded = new ArrayList<>(orders.size());
+        for (VoucherOrder voucherOrder : orders) {
+            boolean success = persisted.contains(voucherOrder.getId());
+            orderResultRegistry.record(voucherOrder, success ? SeckillOrderStatus.SUCCESS : SeckillOrderStatus.FAILED);
+            if (success) {
+                succeeded.add(voucherOrder);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * 批量取消超时未支付的订单：锁住其中仍未支付的订单，一条update改为已取消并释放唯一索引，
+     * 按券合并退回数据库库存；提交后再用seckillcancel.lua把库存还回Redis、移除已购用户，清除售罄标记
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //1.只取消仍未支付的，已支付或已取消的跳过
+        List<VoucherOrder> unpaid = query().in("id", orderIds).eq("status", VoucherOrder.STATUS_UNPAID)
+                .last("FOR UPDATE").list();
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        update().setSql("status = " + VoucherOrder.STATUS_CANCELLED + ", active = NULL")
+                .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .eq("status", VoucherOrder.STATUS_UNPAID)
+                .update();
+        //2.按券合并退回数据库库存 stock = stock + k
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = unpaid.stream().collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        ordersOfVoucher.forEach((voucherId, orders) -> seckillVoucherService.update()
+                .setSql("stock = stock + " + orders.size())
+                .eq("voucher_id", voucherId)
+                .update());
+        //3.提交后退回Redis库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                ordersOfVoucher.forEach((voucherId, orders) -> returnSeckillStock(voucherId, orders));
+            }
+        });
+        return unpaid;
+    }
+
+    /**
+     * 还回Redis失败时，收尾对账以订单表为准修正数据库库存，不会少卖
+     */
+    private void returnSeckillStock(Long voucherId, List<VoucherOrder> orders) {
+        try {
+            //分段数不存在说明券已经收尾，库存以数据库为准
+            String segmentsValue = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+            if (segmentsValue == null) {
+                return;
+            }
+            if (releaseSeckill(voucherId, Integer.parseInt(segmentsValue), orders, true) > 0) {
+                soldOutRegistry.restock(voucherId);
+            }
+        } catch (Exception e) {
+            log.error("取消订单后退回Redis库存失败, voucherId={}, orderIds={}", voucherId,
+                    orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()), e);
+        }
+    }
+
+    /**
+     * 从各自的首选分段移除用户（限购时释放对应的份数），按首选分段分组，每组一次seckillcancel.lua
+     * @param restock 是否把库存还回首选分段：取消订单、入队失败时还，释放占位时不还
+     * @return 实际移除的用户数
+     */
+    private long releaseSeckill(Long voucherId, int segments, List<VoucherOrder> orders, boolean restock) {
+        Map<Integer, List<VoucherOrder>> ordersOfBucket = orders.stream()
+                .collect(Collectors.groupingBy(voucherOrder -> (int) (voucherOrder.getUserId() % segments)));
+        long released = 0;
+        for (Map.Entry<Integer, List<VoucherOrder>> entry : ordersOfBucket.entrySet()) {
+            int bucket = entry.getKey();
+            List<String> keys = SeckillKeys.bucketKeys(voucherId, bucket, segments);
+            //是否还库存, userId1, seq1, userId2, seq2 ...；每个用户的最近买家标记按顺序跟在KEYS后面
+            List<String> args = new ArrayList<>(entry.getValue().size() * 2 + 1);
+            args.add(restock ? "1" : "0");
+            for (VoucherOrder voucherOrder : entry.getValue()) {
+                keys.add(SeckillKeys.buyerKey(voucherId, bucket, segments, voucherOrder.getUserId()));
+                args.add(voucherOrder.getUserId().toString());
+                args.add(String.valueOf(voucherOrder.getSeq() == null ? 1 : voucherOrder.getSeq()));
+            }
+            Long removed = scriptRegistry.execute("seckillcancel", keys, args.toArray());
+            released += removed == null ? 0 : removed;
+        }
+        return released;
+    }
+
+    /**
+     * 查询订单的处理结果：优先读Redis结果记录，还在排队时可以长轮询等待；
+     * 记录不存在（已过期）时按主键回查一次数据库
+     */
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long wait) {
+        Long userId = UserHolder.getUser().getId();
+        SeckillOrderResult result = orderResultRegistry.get(orderId);
+        if (result == null) {
+            VoucherOrder voucherOrder = getById(orderId);
+            if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+                return completed(Result.fail("订单不存在"));
+            }
+            //结果记录已过期，按订单表的状态回答：超时取消的订单不能报成下单成功
+            SeckillOrderStatus status = Integer.valueOf(VoucherOrder.STATUS_CANCELLED).equals(voucherOrder.getStatus())
+                    ? SeckillOrderStatus.CANCELLED : SeckillOrderStatus.SUCCESS;
+            return completed(Result.ok(new SeckillOrderResult(orderId, userId, status)));
+        }
+        //只能查自己的订单
+        if (!userId.equals(result.getUserId())) {
+            return completed(Result.fail("订单不存在"));
+        }
+        if (result.getStatus() != SeckillOrderStatus.PENDING.getCode().intValue() || wait == null || wait <= 0) {
+            return completed(Result.ok(result));
+        }
+        return orderResultRegistry.await(result, wait);
+    }
+
+    private static DeferredResult<Result> completed(Result result) {
+        DeferredResult<Result> deferredResult = new DeferredResult<>();
+        deferredResult.setResult(result);
+        return deferredResult;
+    }
+
+    /**
+     * 扣减库存，库存不足count时不扣减
+     */
+    private boolean deductStock(Long voucherId, int count) {
+        return seckillVoucherService.update()
+                .setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).ge("stock", count)
+                .update();
+    }
+
+
     /*
     public Result seckillVoucher(Long voucherId) {
         // 1.查询优惠券
@@ -5,17 +5,16 @@ import com.djdp.dto.Result;
 import com.djdp.entity.Voucher;
 import com.djdp.mapper.VoucherMapper;
 import com.djdp.entity.SeckillVoucher;
+import com.djdp.enums.BuyerDedupeMode;
 import com.djdp.service.ISeckillVoucherService;
 import com.djdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.djdp.utils.SoldOutRegistry;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.djdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 /**
  * <p>
  *  服务实现类
@@ -32,7 +31,7 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SoldOutRegistry soldOutRegistry;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -53,8 +52,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucher.setBuyerDedupe(BuyerDedupeMode.of(voucher.getBuyerDedupe()).getCode());
+        seckillVoucher.setUserQuota(voucher.getUserQuota() == null ? 1 : voucher.getUserQuota());
         seckillVoucherService.save(seckillVoucher);
 
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        // 库存写入Redis
+        seckillVoucherService.cacheSeckillStock(seckillVoucher);
+        // 库存已补充，清除各节点的售罄标记
+        soldOutRegistry.restock(voucher.getId());
     }
 }
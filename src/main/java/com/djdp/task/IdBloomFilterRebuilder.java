@@ -0,0 +1,62 @@
+package com.djdp.task;
+
+import com.djdp.utils.IdBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/16/15:10
+ * Version: 1.0
+ * Description:id布隆过滤器的重建
+ * 定期检查每个过滤器上次重建的时间，从来没建过（首次启动、Redis被清空）或超过rebuild-interval的从表里全量重建。
+ * 应用启动后的第一次检查就会把还没有的过滤器建出来；多个节点同时检查时由分布式锁保证只有一个节点在重建。
+ * 全量重建能清掉已删除数据留下的位，并按最新的行数重新分配大小，误判率不会随数据增长越来越高。
+ */
+@Slf4j
+@Component
+public class IdBloomFilterRebuilder {
+
+    private static final String REBUILD_LOCK_KEY = "lock:cache:bloom:";
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    /**
+     * 两次全量重建的间隔（毫秒）
+     */
+    @Value("${cache.bloom.rebuild-interval:86400000}")
+    private long rebuildInterval;
+
+    @Scheduled(fixedDelayString = "${cache.bloom.check-interval:60000}")
+    public void check() {
+        for (String keyPrefix : idBloomFilter.prefixes()) {
+            if (!idBloomFilter.needsRebuild(keyPrefix, rebuildInterval)) {
+                continue;
+            }
+            RLock lock = redissonClient.getLock(REBUILD_LOCK_KEY + keyPrefix);
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                //拿到锁之后再看一次，别的节点可能刚重建完
+                if (idBloomFilter.needsRebuild(keyPrefix, rebuildInterval)) {
+                    idBloomFilter.rebuild(keyPrefix);
+                }
+            } catch (Exception e) {
+                log.error("id布隆过滤器重建失败: {}", keyPrefix, e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
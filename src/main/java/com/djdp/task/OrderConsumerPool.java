@@ -0,0 +1,406 @@
+package com.djdp.task;
+
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.exceptions.ExceptionUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.thread.ThreadUtil;
+import cn.hutool.core.util.StrUtil;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.utils.NodeHolder;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.DefaultStringRedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/08/10:40
+ * Version: 1.0
+ * Description:订单stream的弹性消费者池
+ * 每个负责的分区维护 min-consumers ~ max-consumers 个消费者，每个消费者有自己的名字和独占的Redis连接（阻塞读不占共享连接）。
+ * 定时读取消费者组的积压：pending（XINFO GROUPS）+ lag（last-delivered-id之后还没投递的消息数，XRANGE探测），
+ * 积压大时一次扩到需要的数量，积压消化后每轮缩掉一个，被缩掉的消费者处理完手上的批次后归还连接。
+ * 同一分区多个消费者并行落库，一人一单/每人限购由唯一索引uk_voucher_user(voucher_id, user_id, seq, active)保证、扣库存是带条件的update，不依赖消费顺序。
+ */
+@Slf4j
+@Component
+public class OrderConsumerPool {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 每次从stream中批量读取的最大订单数
+     */
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 攒批的最长等待时间（毫秒）
+     */
+    @Value("${seckill.order.batch-linger:50}")
+    private long batchLinger;
+
+    /**
+     * 订单stream的分区总数，必须和所有节点保持一致，秒杀下单时按优惠券id取模路由
+     */
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    /**
+     * 当前节点负责消费的分区，逗号分隔，为空表示消费全部分区
+     */
+    @Value("${seckill.order.consume-partitions:}")
+    private String consumePartitions;
+
+    /**
+     * 每个分区的消费者数量下限、上限
+     */
+    @Value("${seckill.order.pool.min-consumers:1}")
+    private int minConsumers;
+    @Value("${seckill.order.pool.max-consumers:3}")
+    private int maxConsumers;
+
+    /**
+     * 每个消费者负责的积压消息数，积压/该值 向上取整即需要的消费者数
+     */
+    @Value("${seckill.order.pool.backlog-per-consumer:500}")
+    private long backlogPerConsumer;
+
+    /**
+     * 探测lag时最多数到多少条，超过即视为已经需要扩到上限
+     */
+    @Value("${seckill.order.pool.lag-probe:2000}")
+    private long lagProbe;
+
+    /**
+     * 分区号 -> 该分区当前的消费者，按序号排列，扩容追加、缩容从末尾摘除
+     */
+    private final Map<Integer, Deque<OrderConsumer>> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * 分区号 -> 线程还没退出的消费者序号（包括已经缩容、正在处理最后一批的），新消费者不会和它们重名
+     */
+    private final Map<Integer, Set<Integer>> liveIndexes = new ConcurrentHashMap<>();
+
+    private ExecutorService seckillOrderExecutor;
+    private volatile boolean running = true;
+
+    //在当前类初始化完毕后开始执行：每个负责的分区先启动min-consumers个消费者
+    @PostConstruct
+    private void init() {
+        List<Integer> assigned = assignedPartitions();
+        seckillOrderExecutor = new ThreadPoolExecutor(0, assigned.size() * maxConsumers,
+                60L, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        for (Integer partition : assigned) {
+            createGroupIfAbsent(STREAM_ORDERS_KEY + partition);
+            Deque<OrderConsumer> deque = new ConcurrentLinkedDeque<>();
+            consumers.put(partition, deque);
+            liveIndexes.put(partition, ConcurrentHashMap.newKeySet());
+            Gauge.builder("seckill.order.consumers", deque, Deque::size)
+                    .description("订单stream当前的消费者数")
+                    .tag("partition", String.valueOf(partition))
+                    .register(meterRegistry);
+            for (int i = 0; i < minConsumers; i++) {
+                startConsumer(partition);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        seckillOrderExecutor.shutdown();
+    }
+
+    /**
+     * 根据积压调整每个分区的消费者数
+     */
+    @Scheduled(fixedDelayString = "${seckill.order.pool.scale-interval:2000}")
+    public void scale() {
+        for (Map.Entry<Integer, Deque<OrderConsumer>> entry : consumers.entrySet()) {
+            String queueName = STREAM_ORDERS_KEY + entry.getKey();
+            try {
+                long backlog = backlog(queueName);
+                int current = entry.getValue().size();
+                int desired = (int) Math.max(minConsumers,
+                        Math.min(maxConsumers, (backlog + backlogPerConsumer - 1) / backlogPerConsumer));
+                if (desired > current) {
+                    //扩容一步到位，尽快消化积压
+                    int started = current;
+                    while (started < desired && startConsumer(entry.getKey())) {
+                        started++;
+                    }
+                    log.info("订单消费者扩容, stream={}, 积压={}, 消费者 {} -> {}", queueName, backlog, current, started);
+                } else if (desired < current) {
+                    //缩容每轮只减一个，避免积压抖动时反复创建连接
+                    OrderConsumer consumer = entry.getValue().pollLast();
+                    if (consumer != null) {
+                        consumer.stop();
+                        log.info("订单消费者缩容, stream={}, 积压={}, 消费者 {} -> {}", queueName, backlog, current, current - 1);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("调整订单消费者数量异常, stream={}", queueName, e);
+            }
+        }
+    }
+
+    /**
+     * 积压 = 已投递未确认（pending） + 尚未投递（last-delivered-id之后的消息数，最多数到lagProbe）
+     */
+    private long backlog(String queueName) {
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                .filter(g -> STREAM_ORDERS_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return 0;
+        }
+        String lastDeliveredId = group.lastDeliveredId();
+        List<MapRecord<String, Object, Object>> undelivered = stringRedisTemplate.opsForStream().range(queueName,
+                Range.rightUnbounded(Range.Bound.inclusive(lastDeliveredId)), RedisZSetCommands.Limit.limit().count((int) lagProbe + 1));
+        long lag = undelivered == null ? 0 : undelivered.size();
+        //XRANGE的起点是闭区间，last-delivered-id本身还在stream里时要去掉
+        if (lag > 0 && lastDeliveredId.equals(undelivered.get(0).getId().getValue())) {
+            lag--;
+        }
+        return group.pendingCount() + lag;
+    }
+
+    /**
+     * @return 线程池拒绝时返回false：缩容停下的消费者还在等最后一次阻塞读返回，线程没有让出来
+     */
+    private boolean startConsumer(int partition) {
+        //序号取最小的空闲序号，缩容后再扩容会复用之前的消费者名，Redis里不会堆积无用的消费者
+        Set<Integer> live = liveIndexes.get(partition);
+        int index = 0;
+        while (!live.add(index)) {
+            index++;
+        }
+        //先登记再提交，消费者拿不到连接退出时要能把自己移除
+        OrderConsumer consumer = new OrderConsumer(partition, index);
+        consumers.get(partition).addLast(consumer);
+        try {
+            seckillOrderExecutor.submit(consumer);
+            return true;
+        } catch (RejectedExecutionException e) {
+            //没有启动起来，撤销登记，下一轮调整时按积压重新补上
+            consumers.get(partition).remove(consumer);
+            live.remove(index);
+            log.warn("订单消费者线程已满，本轮不再扩容, stream={}", consumer.queueName);
+            return false;
+        }
+    }
+
+    private List<Integer> assignedPartitions() {
+        List<Integer> assigned = new ArrayList<>();
+        if (StrUtil.isBlank(consumePartitions)) {
+            for (int i = 0; i < partitions; i++) {
+                assigned.add(i);
+            }
+            return assigned;
+        }
+        for (String partition : StrUtil.split(consumePartitions, ',', true, true)) {
+            int p = Integer.parseInt(partition);
+            if (p < 0 || p >= partitions) {
+                throw new IllegalArgumentException("分区号超出范围: " + p);
+            }
+            assigned.add(p);
+        }
+        return assigned;
+    }
+
+    /**
+     * 创建消费者组 XGROUP CREATE key g1 0 MKSTREAM，组已存在时忽略
+     */
+    private void createGroupIfAbsent(String queueName) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    queueName.getBytes(StandardCharsets.UTF_8),
+                    STREAM_ORDERS_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            if (!StrUtil.contains(ExceptionUtil.getRootCauseMessage(e), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 获取消息队列的订单信息
+     * 批量模式：一次XREADGROUP最多读取batchSize条，在batchLinger毫秒内攒批，
+     * 整批用一条多值insert落库、每张券合并扣减一次库存，最后整批ACK
+     */
+    private class OrderConsumer implements Runnable {
+        private final int partition;
+        private final String queueName;
+        private final int index;
+        /**
+         * 消费者名：节点标识+分区号+序号，保证集群内唯一
+         */
+        private final String consumerName;
+        private volatile boolean stopped = false;
+
+        OrderConsumer(int partition, int index) {
+            this.partition = partition;
+            this.queueName = STREAM_ORDERS_KEY + partition;
+            this.index = index;
+            this.consumerName = NodeHolder.getNodeId() + "-" + partition + "-" + index;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            //独占一个连接，阻塞读期间不影响其他消费者和业务请求
+            StringRedisConnection connection;
+            try {
+                connection = new DefaultStringRedisConnection(redisConnectionFactory.getConnection());
+            } catch (Exception e) {
+                //拿不到连接就退出，下一轮调整时按积压重新补上
+                log.error("订单消费者获取Redis连接失败, consumer={}", consumerName, e);
+                consumers.get(partition).remove(this);
+                liveIndexes.get(partition).remove(index);
+                return;
+            }
+            try {
+                while (running && !stopped) {
+                    List<StringRecord> records = Collections.emptyList();
+                    try {
+                        //1.攒批获取订单信息   XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS stream.orders.n >
+                        records = readBatch(connection);
+                        //2.判断订单信息是否为空
+                        if (records.isEmpty()) {
+                            // 如果为空，说明没有消息，继续下一次循环
+                            continue;
+                        }
+                        //解析数据
+                        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+                        for (StringRecord record : records) {
+                            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                        }
+                        //整批下单（走代理对象，保证事务生效）
+                        voucherOrderService.createVoucherOrders(voucherOrders);
+                        //整批ACK确认  XACK stream.orders.n g1 id1 id2 ...
+                        connection.xAck(queueName, STREAM_ORDERS_GROUP,
+                                records.stream().map(StringRecord::getId).toArray(RecordId[]::new));
+                    } catch (Exception e) {
+                        log.error("处理订单异常", e);
+                        if (records.isEmpty()) {
+                            // 读取本身失败（如Redis不可用），稍作等待避免空转
+                            ThreadUtil.sleep(20);
+                        } else {
+                            handleOneByOne(connection, records);
+                        }
+                    }
+                }
+                if (stopped) {
+                    removeIfIdle(connection);
+                }
+            } finally {
+                connection.close();
+                liveIndexes.get(partition).remove(index);
+            }
+        }
+
+        /**
+         * 攒批读取：第一次最多阻塞2秒等消息，拿到消息后只在batchLinger时间内继续凑满batchSize
+         */
+        private List<StringRecord> readBatch(StringRedisConnection connection) {
+            List<StringRecord> batch = new ArrayList<>(batchSize);
+            Duration block = Duration.ofSeconds(2);
+            long deadline = 0;
+            while (batch.size() < batchSize) {
+                List<StringRecord> list = connection.xReadGroupAsString(
+                        Consumer.from(STREAM_ORDERS_GROUP, consumerName),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(block),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (list != null) {
+                    batch.addAll(list);
+                }
+                if (batch.isEmpty()) {
+                    break;
+                }
+                if (deadline == 0) {
+                    deadline = System.currentTimeMillis() + batchLinger;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                // BLOCK 0 表示无限阻塞，因此剩余时间不足时直接结束攒批
+                if (remaining <= 0) {
+                    break;
+                }
+                block = Duration.ofMillis(remaining);
+            }
+            return batch;
+        }
+
+        /**
+         * 整批落库失败时逐条重试，正常的订单照常确认；
+         * 失败的留在pending-list里交给PendingOrderReclaimer重试或转入死信，消费线程不在坏消息上阻塞
+         */
+        private void handleOneByOne(StringRedisConnection connection, List<StringRecord> records) {
+            for (StringRecord record : records) {
+                try {
+                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                    voucherOrderService.createVoucherOrder(voucherOrder);
+                    connection.xAck(queueName, STREAM_ORDERS_GROUP, record.getId());
+                } catch (Exception e) {
+                    log.error("处理订单异常, 留待pending-list重试, id={}", record.getId(), e);
+                }
+            }
+        }
+
+        /**
+         * 缩容退出时，名下没有pending消息就把消费者从组里删掉 XGROUP DELCONSUMER；
+         * 还有pending的保留，交给PendingOrderReclaimer认领，之后扩容会复用这个名字
+         */
+        private void removeIfIdle(StringRedisConnection connection) {
+            try {
+                PendingMessages pending = stringRedisTemplate.opsForStream()
+                        .pending(queueName, Consumer.from(STREAM_ORDERS_GROUP, consumerName));
+                if (pending == null || pending.isEmpty()) {
+                    connection.xGroupDelConsumer(queueName, Consumer.from(STREAM_ORDERS_GROUP, consumerName));
+                }
+            } catch (Exception e) {
+                log.error("删除订单消费者失败, stream={}, consumer={}", queueName, consumerName, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.djdp.task;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static com.djdp.utils.RedisConstants.*;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/10/15:20
+ * Version: 1.0
+ * Description:订单stream的归档与裁剪
+ * 每个分区只处理已经确认的消息：id小于pending-list中最小的id，且不超过消费者组的last-delivered-id。
+ * 先把这些消息逐行写成JSON追加到本地gzip分段文件（每轮每个分区一个分段），记录归档游标，
+ * 再用近似裁剪（XTRIM MINID ~ / MAXLEN ~）从Redis中删掉，审计记录留在磁盘上，Redis内存不再无限增长。
+ * 分段文件写在持有归档锁的节点上；进程在写完文件和裁剪之间退出时，下一轮会从游标继续，不会重复归档。
+ */
+@Slf4j
+@Component
+public class OrderStreamArchiver {
+
+    private static final String ARCHIVE_LOCK_KEY = "lock:seckill:archive";
+    private static final String TRIM_MINID = "minid";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    @Value("${seckill.archive.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 分段文件目录
+     */
+    @Value("${seckill.archive.dir:./archive}")
+    private String dir;
+
+    /**
+     * 每次XRANGE读取的条数
+     */
+    @Value("${seckill.archive.batch-size:1000}")
+    private int batchSize;
+
+    /**
+     * 每个分区每轮最多归档的条数，即一个分段文件的上限
+     */
+    @Value("${seckill.archive.max-segment-entries:100000}")
+    private int maxSegmentEntries;
+
+    /**
+     * 裁剪方式：minid（Redis 6.2+）或 maxlen
+     */
+    @Value("${seckill.archive.trim:minid}")
+    private String trim;
+
+    @Scheduled(fixedDelayString = "${seckill.archive.interval:60000}")
+    public void archive() {
+        if (!enabled) {
+            return;
+        }
+        //多个节点只需要一个在归档
+        RLock lock = redissonClient.getLock(ARCHIVE_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            for (int i = 0; i < partitions; i++) {
+                String queueName = STREAM_ORDERS_KEY + i;
+                try {
+                    archive(queueName);
+                } catch (Exception e) {
+                    log.error("归档订单stream异常, stream={}", queueName, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void archive(String queueName) throws IOException {
+        //1.可以归档的上界：不超过last-delivered-id，且小于pending-list中最小的id
+        StreamInfo.XInfoGroup group = stringRedisTemplate.opsForStream().groups(queueName).stream()
+                .filter(g -> STREAM_ORDERS_GROUP.equals(g.groupName()))
+                .findFirst().orElse(null);
+        if (group == null) {
+            return;
+        }
+        String lastDeliveredId = group.lastDeliveredId();
+        PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(queueName, STREAM_ORDERS_GROUP);
+        String minPendingId = pending == null || pending.getTotalPendingMessages() == 0 ? null : pending.minMessageId();
+        String cursor = stringRedisTemplate.opsForValue().get(STREAM_ORDERS_ARCHIVE_KEY + queueName);
+
+        //2.从头读到上界：游标之前的是上次近似裁剪留下的，只计数不再归档
+        long leftover = 0;
+        StringBuilder lines = new StringBuilder();
+        int archived = 0;
+        String firstId = null;
+        String lastId = null;
+        String from = "-";
+        boolean done = false;
+        while (!done && archived < maxSegmentEntries) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().range(queueName,
+                    Range.closed(from, lastDeliveredId), RedisZSetCommands.Limit.limit().count(batchSize));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                String id = record.getId().getValue();
+                if (id.equals(from) && !"-".equals(from)) {
+                    //XRANGE起点是闭区间，上一批的最后一条已经处理过
+                    continue;
+                }
+                if (minPendingId != null && compareIds(id, minPendingId) >= 0) {
+                    done = true;
+                    break;
+                }
+                if (cursor != null && compareIds(id, cursor) <= 0) {
+                    leftover++;
+                } else {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("streamId", id);
+                    line.putAll(record.getValue());
+                    lines.append(JSONUtil.toJsonStr(line)).append('\n');
+                    if (firstId == null) {
+                        firstId = id;
+                    }
+                    lastId = id;
+                    if (++archived >= maxSegmentEntries) {
+                        break;
+                    }
+                }
+                from = id;
+            }
+            if (records.size() < batchSize) {
+                break;
+            }
+        }
+
+        //3.写分段文件，再推进游标
+        if (archived > 0) {
+            writeSegment(queueName, firstId, lastId, lines);
+            stringRedisTemplate.opsForValue().set(STREAM_ORDERS_ARCHIVE_KEY + queueName, lastId);
+            cursor = lastId;
+            log.info("订单stream已归档, stream={}, 条数={}, 区间=[{}, {}]", queueName, archived, firstId, lastId);
+        }
+
+        //4.裁剪游标及之前的消息
+        if (cursor != null && leftover + archived > 0) {
+            trim(queueName, cursor, leftover + archived);
+        }
+    }
+
+    /**
+     * 先写临时文件再改名，分段文件要么完整要么不存在
+     */
+    private void writeSegment(String queueName, String firstId, String lastId, CharSequence lines) throws IOException {
+        Path directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        String name = queueName + "-" + firstId + "-" + lastId + ".jsonl.gz";
+        Path tmp = directory.resolve(name + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+                new GZIPOutputStream(Files.newOutputStream(tmp)), StandardCharsets.UTF_8))) {
+            writer.append(lines);
+        }
+        Files.move(tmp, directory.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * XTRIM key MINID ~ 游标的下一个id  或  XTRIM key MAXLEN ~ 长度-可裁剪条数
+     * 近似裁剪只删除整块的节点，可能会留下一部分，下一轮计入leftover继续裁
+     */
+    private void trim(String queueName, String cursor, long removable) {
+        byte[] key = queueName.getBytes(StandardCharsets.UTF_8);
+        byte[][] args;
+        if (TRIM_MINID.equalsIgnoreCase(trim)) {
+            args = new byte[][]{key, bytes("MINID"), bytes("~"), bytes(nextId(cursor))};
+        } else {
+            Long size = stringRedisTemplate.opsForStream().size(queueName);
+            long keep = Math.max(0, (size == null ? 0 : size) - removable);
+            args = new byte[][]{key, bytes("MAXLEN"), bytes("~"), bytes(String.valueOf(keep))};
+        }
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XTRIM", args));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * stream id 格式 毫秒时间戳-序号
+     */
+    private static int compareIds(String a, String b) {
+        long[] x = parseId(a);
+        long[] y = parseId(b);
+        int c = Long.compare(x[0], y[0]);
+        return c != 0 ? c : Long.compare(x[1], y[1]);
+    }
+
+    private static String nextId(String id) {
+        long[] x = parseId(id);
+        return x[0] + "-" + (x[1] + 1);
+    }
+
+    private static long[] parseId(String id) {
+        return new long[]{Long.parseLong(StrUtil.subBefore(id, "-", false)),
+                Long.parseLong(StrUtil.subAfter(id, "-", false))};
+    }
+}
@@ -0,0 +1,185 @@
+package com.djdp.task;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.SeckillOrderStatus;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.utils.NodeHolder;
+import com.djdp.utils.OrderResultRegistry;
+import com.djdp.utils.RedisScriptRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.djdp.utils.RedisConstants.*;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/02/14:30
+ * Version: 1.0
+ * Description:订单stream的pending-list认领任务
+ * 定时扫描每个分区的pending-list（XPENDING），把空闲超过reclaim-idle毫秒的消息用XCLAIM认领过来重新落库，
+ * 不管原消费者是本节点还是已经宕机的节点。
+ * 每条消息的投递次数由Redis记录，达到max-deliveries仍失败的转入死信stream，避免毒消息拖住整条流水线。
+ */
+@Slf4j
+@Component
+public class PendingOrderReclaimer {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry scriptRegistry;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private OrderResultRegistry orderResultRegistry;
+
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    /**
+     * pending消息空闲超过该毫秒数才会被认领
+     */
+    @Value("${seckill.order.reclaim-idle:30000}")
+    private long reclaimIdle;
+
+    /**
+     * 最大投递次数，达到后转入死信stream
+     */
+    @Value("${seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 每次XPENDING读取的pending消息数，每轮按这个大小分页扫完整个pending-list
+     */
+    @Value("${seckill.order.reclaim-batch:100}")
+    private int reclaimBatch;
+
+    private final String consumerName = NodeHolder.getNodeId() + "-reclaimer";
+
+    @Scheduled(fixedDelayString = "${seckill.order.reclaim-interval:5000}")
+    public void reclaim() {
+        for (int i = 0; i < partitions; i++) {
+            String queueName = STREAM_ORDERS_KEY + i;
+            try {
+                reclaim(queueName);
+            } catch (Exception e) {
+                log.error("认领pending订单异常, stream={}", queueName, e);
+            }
+        }
+    }
+
+    /**
+     * 按消息id分页扫完整个pending-list：前面的消息还没空闲够时不能挡住后面已经空闲的
+     */
+    private void reclaim(String queueName) {
+        String lastId = null;
+        while (true) {
+            //1.查询pending-list  XPENDING stream.orders.n g1 - + count，下一页从上一页最后一条开始（闭区间，多取一条去掉它）
+            Range<String> range = lastId == null ? Range.unbounded() : Range.rightUnbounded(Range.Bound.inclusive(lastId));
+            int count = lastId == null ? reclaimBatch : reclaimBatch + 1;
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(queueName, STREAM_ORDERS_GROUP, range, count);
+            if (pendingMessages == null || pendingMessages.isEmpty()) {
+                return;
+            }
+            List<PendingMessage> page = new ArrayList<>(pendingMessages.size());
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (!pendingMessage.getIdAsString().equals(lastId)) {
+                    page.add(pendingMessage);
+                }
+            }
+            if (page.isEmpty()) {
+                return;
+            }
+            reclaimPage(queueName, page);
+            if (pendingMessages.size() < count) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getIdAsString();
+        }
+    }
+
+    private void reclaimPage(String queueName, List<PendingMessage> pendingMessages) {
+        List<RecordId> idleIds = new ArrayList<>();
+        for (PendingMessage pendingMessage : pendingMessages) {
+            if (pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() < reclaimIdle) {
+                continue;
+            }
+            //2.投递次数达到上限的转入死信，其余的认领重试
+            if (pendingMessage.getTotalDeliveryCount() >= maxDeliveries) {
+                deadLetter(queueName, pendingMessage);
+            } else {
+                idleIds.add(pendingMessage.getId());
+            }
+        }
+        if (idleIds.isEmpty()) {
+            return;
+        }
+        //3.认领并重新落库，失败的继续留在pending-list，下次认领时投递次数+1
+        for (MapRecord<String, String, String> record : claim(queueName, idleIds)) {
+            try {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                voucherOrderService.createVoucherOrder(voucherOrder);
+                stringRedisTemplate.opsForStream().acknowledge(queueName, STREAM_ORDERS_GROUP, record.getId());
+            } catch (Exception e) {
+                log.error("重试pending订单失败, stream={}, id={}", queueName, record.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * XCLAIM stream.orders.n g1 reclaimer min-idle-time id...
+     * min-idle-time 保证多个节点同时扫描时同一条消息只会被一个节点认领
+     */
+    private List<MapRecord<String, String, String>> claim(String queueName, List<RecordId> ids) {
+        List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.xClaim(queueName.getBytes(StandardCharsets.UTF_8), STREAM_ORDERS_GROUP, consumerName,
+                        RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(reclaimIdle))
+                                .ids(ids.toArray(new RecordId[0]))));
+        if (claimed == null || claimed.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<MapRecord<String, String, String>> records = new ArrayList<>(claimed.size());
+        for (ByteRecord byteRecord : claimed) {
+            records.add(byteRecord.deserialize(StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8, StringRedisSerializer.UTF_8));
+        }
+        return records;
+    }
+
+    private void deadLetter(String queueName, PendingMessage pendingMessage) {
+        //先取出订单内容，转入死信后用来写失败的结果记录
+        List<MapRecord<String, Object, Object>> entries = stringRedisTemplate.opsForStream()
+                .range(queueName, Range.closed(pendingMessage.getIdAsString(), pendingMessage.getIdAsString()));
+        Long moved = scriptRegistry.execute("deadletter",
+                Arrays.asList(queueName, STREAM_ORDERS_DLQ_KEY),
+                STREAM_ORDERS_GROUP, pendingMessage.getIdAsString(), String.valueOf(pendingMessage.getTotalDeliveryCount()));
+        if (moved != null && moved == 1) {
+            log.error("订单消息多次处理失败, 已转入死信队列, stream={}, id={}, 投递次数={}",
+                    queueName, pendingMessage.getIdAsString(), pendingMessage.getTotalDeliveryCount());
+            if (entries != null && !entries.isEmpty()) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(entries.get(0).getValue(), new VoucherOrder(), true);
+                orderResultRegistry.record(voucherOrder, SeckillOrderStatus.FAILED);
+            }
+        }
+    }
+}
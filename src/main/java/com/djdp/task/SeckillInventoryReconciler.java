@@ -0,0 +1,173 @@
+package com.djdp.task;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.djdp.dto.SeckillStockSnapshot;
+import com.djdp.entity.SeckillVoucher;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.mapper.VoucherOrderMapper;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.utils.OrderStreamMonitor;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/09/11:30
+ * Version: 1.0
+ * Description:秒杀库存的Redis-MySQL增量对账
+ * 每轮按voucher_id游标取reconcile.batch-size张进行中的券，逐张比较：
+ * Redis剩余库存、Redis已购用户数、订单表订单数、tb_seckill_voucher.stock。
+ * 订单stream还有积压时只检查"订单表不能多于Redis已购"，消费完后要求两边完全一致。
+ * 不一致的计入指标 seckill.reconcile.mismatch{type}，开启repair时按订单表修正数据库库存。
+ * 每轮只有一次券查询，每张券一个pipeline加一次索引count，可以在秒杀期间一直开着。
+ */
+@Slf4j
+@Component
+public class SeckillInventoryReconciler {
+
+    private static final String RECONCILE_LOCK_KEY = "lock:seckill:reconcile";
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    /**
+     * 每轮对账的券数
+     */
+    @Value("${seckill.reconcile.batch-size:20}")
+    private int batchSize;
+
+    /**
+     * 是否自动修正数据库库存
+     */
+    @Value("${seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    /**
+     * 下一轮从哪个voucher_id之后开始
+     */
+    private long cursor = 0;
+
+    /**
+     * 最近一轮发现的不一致券数
+     */
+    private final AtomicInteger lastMismatched = new AtomicInteger();
+
+    @PostConstruct
+    private void init() {
+        meterRegistry.gauge("seckill.reconcile.mismatched", lastMismatched);
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.reconcile.interval:10000}")
+    public void reconcile() {
+        //多个节点只需要一个在对账
+        RLock lock = redissonClient.getLock(RECONCILE_LOCK_KEY);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                    .le("begin_time", LocalDateTime.now())
+                    .gt("voucher_id", cursor)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + batchSize)
+                    .list();
+            //一轮走完从头开始
+            cursor = vouchers.size() < batchSize ? 0 : vouchers.get(vouchers.size() - 1).getVoucherId();
+            Map<Long, Boolean> drained = new HashMap<>(partitions);
+            int mismatched = 0;
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    if (!reconcile(voucher, drained)) {
+                        mismatched++;
+                    }
+                } catch (Exception e) {
+                    log.error("秒杀库存对账异常, voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+            lastMismatched.set(mismatched);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return 是否一致
+     */
+    private boolean reconcile(SeckillVoucher voucher, Map<Long, Boolean> drained) {
+        Long voucherId = voucher.getVoucherId();
+        SeckillStockSnapshot snapshot = seckillVoucherService.getRedisStockSnapshot(voucherId);
+        if (snapshot == null) {
+            //没有加载到Redis（未预热或已收尾）
+            return true;
+        }
+        meterRegistry.counter("seckill.reconcile.checked").increment();
+        long soldInDb = voucherOrderMapper.selectCount(new QueryWrapper<VoucherOrder>()
+                .eq("voucher_id", voucherId).ne("status", VoucherOrder.STATUS_CANCELLED));
+        long partition = voucherId % partitions;
+        boolean isDrained = drained.computeIfAbsent(partition,
+                p -> orderStreamMonitor.isDrained(STREAM_ORDERS_KEY + p));
+        long expectedStock = seckillVoucherService.reconciledStock(snapshot, soldInDb);
+
+        boolean consistent = true;
+        if (soldInDb > snapshot.getBuyers()) {
+            //订单表比Redis多，说明Redis丢了购买记录
+            mismatch("buyers", voucherId, "订单表已售=" + soldInDb + ", Redis已购=" + snapshot.getBuyers());
+            consistent = false;
+        }
+        if (!isDrained) {
+            //还有订单在路上，剩下的比较没有意义
+            return consistent;
+        }
+        if (soldInDb < snapshot.getBuyers()) {
+            //Redis扣了库存但订单没有落库（如进了死信）
+            mismatch("orders", voucherId, "订单表已售=" + soldInDb + ", Redis已购=" + snapshot.getBuyers());
+            consistent = false;
+        }
+        if (voucher.getStock() != expectedStock) {
+            mismatch("stock", voucherId, "数据库库存=" + voucher.getStock() + ", 应有库存=" + expectedStock);
+            consistent = false;
+            if (repair) {
+                seckillVoucherService.update().set("stock", expectedStock)
+                        .eq("voucher_id", voucherId).eq("stock", voucher.getStock()).update();
+                meterRegistry.counter("seckill.reconcile.repaired").increment();
+                log.warn("已修正数据库库存, voucherId={}, {} -> {}", voucherId, voucher.getStock(), expectedStock);
+            }
+        }
+        return consistent;
+    }
+
+    private void mismatch(String type, Long voucherId, String detail) {
+        meterRegistry.counter("seckill.reconcile.mismatch", "type", type).increment();
+        log.warn("秒杀库存对账不一致, type={}, voucherId={}, {}", type, voucherId, detail);
+    }
+}
@@ -0,0 +1,183 @@
+package com.djdp.task;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.djdp.entity.SeckillVoucher;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.utils.OrderStreamMonitor;
+import com.djdp.utils.SoldOutRegistry;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/08/15:20
+ * Version: 1.0
+ * Description:秒杀券生命周期调度
+ * 定时扫描即将开始/已经结束的秒杀券，用时间轮（HashedWheelTimer）挂上两个定时任务：
+ * 1.开始前pre-warm-lead毫秒预热：Redis里没有这张券（新券或Redis被清空）时按数据库库存加载
+ * 2.结束后close-grace毫秒收尾：等订单stream消费完，把售卖结果对账回MySQL并释放Redis中的key
+ * 时间轮空闲时只有一个tick线程在走，挂再多的券也几乎没有开销；真正的加载/收尾在单独的线程池里执行。
+ */
+@Slf4j
+@Component
+public class SeckillLifecycleScheduler {
+
+    private static final String LIFECYCLE_LOCK_KEY = "lock:seckill:lifecycle:";
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    /**
+     * 每次扫描向后看多远（毫秒），需要大于扫描间隔
+     */
+    @Value("${seckill.lifecycle.horizon:300000}")
+    private long horizon;
+
+    /**
+     * 开始前多久预热（毫秒）
+     */
+    @Value("${seckill.lifecycle.pre-warm-lead:60000}")
+    private long preWarmLead;
+
+    /**
+     * 结束后多久收尾（毫秒）
+     */
+    @Value("${seckill.lifecycle.close-grace:60000}")
+    private long closeGrace;
+
+    /**
+     * 订单还没消费完时，收尾推迟多久重试（毫秒）
+     */
+    @Value("${seckill.lifecycle.close-retry:30000}")
+    private long closeRetry;
+
+    /**
+     * 向前回看多久已经结束的券（毫秒），覆盖节点停机期间错过的收尾
+     */
+    @Value("${seckill.lifecycle.close-lookback:86400000}")
+    private long closeLookback;
+
+    private final HashedWheelTimer wheelTimer = new HashedWheelTimer(
+            ThreadFactoryBuilder.create().setNamePrefix("seckill-lifecycle-wheel-").setDaemon(true).build(),
+            1, TimeUnit.SECONDS, 512);
+
+    private final ExecutorService lifecycleExecutor = Executors.newFixedThreadPool(2,
+            ThreadFactoryBuilder.create().setNamePrefix("seckill-lifecycle-").build());
+
+    private final Map<Long, Timeout> preWarmTimeouts = new ConcurrentHashMap<>();
+    private final Map<Long, Timeout> closeTimeouts = new ConcurrentHashMap<>();
+    private final Set<Long> closedVouchers = ConcurrentHashMap.newKeySet();
+
+    @Scheduled(fixedDelayString = "${seckill.lifecycle.scan-interval:60000}")
+    public void scan() {
+        LocalDateTime now = LocalDateTime.now();
+        //begin_time在视野内、end_time没有过回看期限的券
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .le("begin_time", now.plus(Duration.ofMillis(horizon)))
+                .ge("end_time", now.minus(Duration.ofMillis(closeLookback)))
+                .list();
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            if (closedVouchers.contains(voucherId)) {
+                continue;
+            }
+            if (voucher.getEndTime().isAfter(now)) {
+                schedule(preWarmTimeouts, voucherId, delayOf(voucher.getBeginTime(), -preWarmLead), () -> preWarm(voucherId));
+            }
+            long closeDelay = delayOf(voucher.getEndTime(), closeGrace);
+            if (closeDelay <= horizon) {
+                schedule(closeTimeouts, voucherId, closeDelay, () -> close(voucherId));
+            }
+        }
+    }
+
+    private void schedule(Map<Long, Timeout> timeouts, Long voucherId, long delay, Runnable task) {
+        timeouts.computeIfAbsent(voucherId, id -> wheelTimer.newTimeout(timeout -> {
+            timeouts.remove(id);
+            lifecycleExecutor.submit(task);
+        }, Math.max(delay, 0), TimeUnit.MILLISECONDS));
+    }
+
+    private void preWarm(Long voucherId) {
+        RLock lock = redissonClient.getLock(LIFECYCLE_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //重新读一次，拿到最新的剩余库存
+            SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+            if (voucher != null && seckillVoucherService.prewarmSeckillStock(voucher)) {
+                soldOutRegistry.restock(voucherId);
+                log.info("秒杀券已预热, voucherId={}, 库存={}", voucherId, voucher.getStock());
+            }
+        } catch (Exception e) {
+            log.error("秒杀券预热失败, voucherId={}", voucherId, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close(Long voucherId) {
+        RLock lock = redissonClient.getLock(LIFECYCLE_LOCK_KEY + voucherId);
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            //订单还在stream里没落库时对账会把它们当成丢单，推迟再收尾
+            if (!orderStreamMonitor.isDrained(STREAM_ORDERS_KEY + voucherId % partitions)) {
+                schedule(closeTimeouts, voucherId, closeRetry, () -> close(voucherId));
+                return;
+            }
+            seckillVoucherService.closeSeckillStock(voucherId);
+            closedVouchers.add(voucherId);
+            log.info("秒杀券已收尾, voucherId={}", voucherId);
+        } catch (Exception e) {
+            log.error("秒杀券收尾失败, voucherId={}", voucherId, e);
+            schedule(closeTimeouts, voucherId, closeRetry, () -> close(voucherId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long delayOf(LocalDateTime time, long offset) {
+        return Duration.between(LocalDateTime.now(), time).toMillis() + offset;
+    }
+
+    @PreDestroy
+    private void destroy() {
+        wheelTimer.stop();
+        lifecycleExecutor.shutdown();
+    }
+}
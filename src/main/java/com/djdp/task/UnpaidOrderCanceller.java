@@ -0,0 +1,123 @@
+package com.djdp.task;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.utils.UnpaidOrderQueue;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/13/10:30
+ * Version: 1.0
+ * Description:超时未支付订单的自动取消
+ * 每轮由workers个线程并行从延迟队列领取到期的订单，每次一批：
+ * 批量取消仍未支付的订单，退回数据库和Redis库存，再把整批出队。
+ * 领取带租约，多个节点同时跑不会重复处理；处理失败的批次不出队，租约到期后重新领取。
+ */
+@Slf4j
+@Component
+public class UnpaidOrderCanceller {
+
+    @Resource
+    private UnpaidOrderQueue unpaidOrderQueue;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Value("${seckill.pay.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每个节点并行取消的线程数
+     */
+    @Value("${seckill.pay.workers:2}")
+    private int workers;
+
+    /**
+     * 每次领取的订单数
+     */
+    @Value("${seckill.pay.batch-size:200}")
+    private int batchSize;
+
+    /**
+     * 每个线程每轮最多处理的批数，避免一轮占用太久
+     */
+    @Value("${seckill.pay.max-batches:50}")
+    private int maxBatches;
+
+    private ExecutorService executor;
+
+    private Counter cancelled;
+
+    @PostConstruct
+    private void init() {
+        executor = Executors.newFixedThreadPool(workers,
+                ThreadFactoryBuilder.create().setNamePrefix("unpaid-canceller-").setDaemon(true).build());
+        cancelled = meterRegistry.counter("seckill.pay.cancelled");
+    }
+
+    @PreDestroy
+    private void destroy() {
+        executor.shutdownNow();
+    }
+
+    @Scheduled(fixedDelayString = "${seckill.pay.scan-interval:1000}")
+    public void cancelExpired() {
+        if (!enabled) {
+            return;
+        }
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[workers];
+        for (int i = 0; i < workers; i++) {
+            futures[i] = CompletableFuture.runAsync(this::drain, executor);
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    private void drain() {
+        for (int i = 0; i < maxBatches; i++) {
+            List<Long> orderIds;
+            try {
+                orderIds = unpaidOrderQueue.poll(batchSize);
+            } catch (Exception e) {
+                log.error("领取到期未支付订单异常", e);
+                return;
+            }
+            if (orderIds.isEmpty()) {
+                return;
+            }
+            try {
+                List<VoucherOrder> orders = voucherOrderService.cancelUnpaidOrders(orderIds);
+                //已支付、已取消的订单和刚取消的一起出队
+                unpaidOrderQueue.remove(orderIds);
+                cancelled.increment(orders.size());
+                if (!orders.isEmpty()) {
+                    log.info("取消超时未支付订单{}单", orders.size());
+                }
+            } catch (Exception e) {
+                //不出队，租约到期后重新领取
+                log.error("取消超时未支付订单异常, orderIds={}", orderIds, e);
+                return;
+            }
+            if (orderIds.size() < batchSize) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.djdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/15/10:30
+ * Version: 1.0
+ * Description:紧凑的二进制编解码，不依赖额外的序列化框架，按类的字段结构(schema)读写，不写字段名
+ * 格式：
+ * 1.第一个字节是头：高4位固定为0xB，低位标记是否带逻辑过期时间、值是否是JSON、值是否为null；
+ * 2.带逻辑过期时间时，紧跟8字节的过期时间戳（毫秒），读过期时间不用解析后面的数据；
+ * 3.普通对象：4字节schema哈希 + 字段非空位图 + 按字段名排序依次写非空字段：
+ * 整数用zigzag变长编码，小数8字节，字符串是变长长度+UTF-8，LocalDateTime是秒+纳秒，其他类型的字段写成JSON字符串；
+ * 4.String、数字、集合等不是普通对象的值整个写成JSON。
+ * 类的字段有增删改时schema哈希变化，旧数据解码返回null，按未命中处理，重新查数据库覆盖
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "cache.codec", havingValue = "binary")
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final int MAGIC = 0xB0;
+    private static final int MAGIC_MASK = 0xF0;
+    private static final int FLAG_EXPIRE = 0x01;
+    private static final int FLAG_JSON = 0x02;
+    private static final int FLAG_NULL = 0x04;
+
+    private static final int T_LONG = 1;
+    private static final int T_INT = 2;
+    private static final int T_SHORT = 3;
+    private static final int T_BYTE = 4;
+    private static final int T_BOOLEAN = 5;
+    private static final int T_DOUBLE = 6;
+    private static final int T_FLOAT = 7;
+    private static final int T_STRING = 8;
+    private static final int T_LOCAL_DATE_TIME = 9;
+    private static final int T_LOCAL_DATE = 10;
+    private static final int T_BIG_DECIMAL = 11;
+    private static final int T_JSON = 12;
+
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] encode(Object value) {
+        Output out = new Output();
+        writeValue(out, value, 0, 0);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            Input in = new Input(bytes);
+            int header = in.readByte();
+            if ((header & MAGIC_MASK) != MAGIC || (header & FLAG_EXPIRE) != 0) {
+                return null;
+            }
+            return readValue(in, header, type);
+        } catch (RuntimeException e) {
+            log.debug("缓存值解码失败, 按未命中处理: {}", type.getName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        Output out = new Output();
+        writeValue(out, value, FLAG_EXPIRE, expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type) {
+        try {
+            Input in = new Input(bytes);
+            int header = in.readByte();
+            if ((header & MAGIC_MASK) != MAGIC || (header & FLAG_EXPIRE) == 0) {
+                return null;
+            }
+            long expireMillis = in.readFixedLong();
+            T data = readValue(in, header, type);
+            if (data == null) {
+                return null;
+            }
+            RedisData redisData = new RedisData();
+            redisData.setData(data);
+            redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireMillis), ZoneId.systemDefault()));
+            return redisData;
+        } catch (RuntimeException e) {
+            log.debug("缓存值解码失败, 按未命中处理: {}", type.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 头 + 过期时间（带FLAG_EXPIRE时）+ 数据
+     */
+    private void writeValue(Output out, Object value, int flags, long expireMillis) {
+        if (value == null) {
+            flags |= FLAG_NULL;
+        }
+        Schema schema = value == null ? null : schemaOf(value.getClass());
+        out.writeByte(MAGIC | flags | (schema == null ? FLAG_JSON : 0));
+        if ((flags & FLAG_EXPIRE) != 0) {
+            out.writeFixedLong(expireMillis);
+        }
+        if (value == null) {
+            return;
+        }
+        if (schema == null) {
+            out.writeRaw(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        out.writeFixedInt(schema.hash);
+        byte[] nulls = new byte[(schema.fields.length + 7) >>> 3];
+        Object[] values = new Object[schema.fields.length];
+        for (int i = 0; i < schema.fields.length; i++) {
+            values[i] = schema.fields[i].get(value);
+            if (values[i] == null) {
+                nulls[i >>> 3] |= 1 << (i & 7);
+            }
+        }
+        out.writeRaw(nulls);
+        for (int i = 0; i < schema.fields.length; i++) {
+            if (values[i] != null) {
+                writeField(out, schema.fields[i].type, values[i]);
+            }
+        }
+    }
+
+    private <T> T readValue(Input in, int header, Class<T> type) {
+        if ((header & FLAG_NULL) != 0) {
+            return null;
+        }
+        if ((header & FLAG_JSON) != 0) {
+            return JSONUtil.toBean(new String(in.buf, in.pos, in.buf.length - in.pos, StandardCharsets.UTF_8), type);
+        }
+        Schema schema = schemaOf(type);
+        if (schema == null || in.readFixedInt() != schema.hash) {
+            return null;
+        }
+        int length = schema.fields.length;
+        byte[] nulls = in.readRaw((length + 7) >>> 3);
+        T value = schema.newInstance(type);
+        for (int i = 0; i < length; i++) {
+            if ((nulls[i >>> 3] & (1 << (i & 7))) == 0) {
+                FieldSlot slot = schema.fields[i];
+                slot.set(value, readField(in, slot));
+            }
+        }
+        return value;
+    }
+
+    private static void writeField(Output out, int type, Object value) {
+        switch (type) {
+            case T_LONG:
+                out.writeVarLong(((Number) value).longValue());
+                break;
+            case T_INT:
+            case T_SHORT:
+            case T_BYTE:
+                out.writeVarLong(((Number) value).intValue());
+                break;
+            case T_BOOLEAN:
+                out.writeByte((Boolean) value ? 1 : 0);
+                break;
+            case T_DOUBLE:
+                out.writeFixedLong(Double.doubleToRawLongBits((Double) value));
+                break;
+            case T_FLOAT:
+                out.writeFixedInt(Float.floatToRawIntBits((Float) value));
+                break;
+            case T_STRING:
+                out.writeString((String) value);
+                break;
+            case T_LOCAL_DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            case T_LOCAL_DATE:
+                out.writeVarLong(((LocalDate) value).toEpochDay());
+                break;
+            case T_BIG_DECIMAL:
+                out.writeString(((BigDecimal) value).toString());
+                break;
+            default:
+                out.writeString(JSONUtil.toJsonStr(value));
+        }
+    }
+
+    private static Object readField(Input in, FieldSlot slot) {
+        switch (slot.type) {
+            case T_LONG:
+                return in.readVarLong();
+            case T_INT:
+                return (int) in.readVarLong();
+            case T_SHORT:
+                return (short) in.readVarLong();
+            case T_BYTE:
+                return (byte) in.readVarLong();
+            case T_BOOLEAN:
+                return in.readByte() != 0;
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readFixedLong());
+            case T_FLOAT:
+                return Float.intBitsToFloat(in.readFixedInt());
+            case T_STRING:
+                return in.readString();
+            case T_LOCAL_DATE_TIME:
+                return LocalDateTime.ofEpochSecond(in.readVarLong(), (int) in.readVarLong(), ZoneOffset.UTC);
+            case T_LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.readVarLong());
+            case T_BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            default:
+                return JSONUtil.toBean(in.readString(), slot.field.getGenericType(), false);
+        }
+    }
+
+    /**
+     * JDK的类、数组、集合、枚举等没有无参构造或字段不稳定的类型不按schema编码，返回null
+     */
+    private Schema schemaOf(Class<?> type) {
+        if (type.isPrimitive() || type.isArray() || type.isEnum() || type.isInterface()
+                || type.getName().startsWith("java.") || Modifier.isAbstract(type.getModifiers())) {
+            return null;
+        }
+        return schemas.computeIfAbsent(type, Schema::build).orNull();
+    }
+
+    private static int typeCode(Class<?> type) {
+        if (type == Long.class || type == long.class) {
+            return T_LONG;
+        } else if (type == Integer.class || type == int.class) {
+            return T_INT;
+        } else if (type == Short.class || type == short.class) {
+            return T_SHORT;
+        } else if (type == Byte.class || type == byte.class) {
+            return T_BYTE;
+        } else if (type == Boolean.class || type == boolean.class) {
+            return T_BOOLEAN;
+        } else if (type == Double.class || type == double.class) {
+            return T_DOUBLE;
+        } else if (type == Float.class || type == float.class) {
+            return T_FLOAT;
+        } else if (type == String.class) {
+            return T_STRING;
+        } else if (type == LocalDateTime.class) {
+            return T_LOCAL_DATE_TIME;
+        } else if (type == LocalDate.class) {
+            return T_LOCAL_DATE;
+        } else if (type == BigDecimal.class) {
+            return T_BIG_DECIMAL;
+        }
+        return T_JSON;
+    }
+
+    private static class FieldSlot {
+        private final Field field;
+        private final int type;
+
+        FieldSlot(Field field) {
+            this.field = field;
+            this.type = typeCode(field.getType());
+        }
+
+        Object get(Object target) {
+            try {
+                return field.get(target);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void set(Object target, Object value) {
+            try {
+                field.set(target, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Schema {
+        private static final Schema UNSUPPORTED = new Schema(null, 0);
+
+        private final FieldSlot[] fields;
+        private final int hash;
+
+        Schema(FieldSlot[] fields, int hash) {
+            this.fields = fields;
+            this.hash = hash;
+        }
+
+        /**
+         * 收集类和父类的非static、非transient字段，按名字排序；哈希由类名和每个字段的名字、类型算出
+         */
+        static Schema build(Class<?> type) {
+            try {
+                type.getDeclaredConstructor().setAccessible(true);
+            } catch (NoSuchMethodException | RuntimeException e) {
+                return UNSUPPORTED;
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                        fields.add(field);
+                    }
+                }
+            }
+            fields.sort(Comparator.comparing(Field::getName).thenComparing(f -> f.getDeclaringClass().getName()));
+            CRC32 crc = new CRC32();
+            crc.update(type.getName().getBytes(StandardCharsets.UTF_8));
+            FieldSlot[] slots = new FieldSlot[fields.size()];
+            for (int i = 0; i < slots.length; i++) {
+                Field field = fields.get(i);
+                try {
+                    field.setAccessible(true);
+                } catch (RuntimeException e) {
+                    return UNSUPPORTED;
+                }
+                slots[i] = new FieldSlot(field);
+                crc.update((field.getName() + ":" + field.getGenericType().getTypeName() + ";").getBytes(StandardCharsets.UTF_8));
+            }
+            return new Schema(slots, (int) crc.getValue());
+        }
+
+        Schema orNull() {
+            return this == UNSUPPORTED ? null : this;
+        }
+
+        <T> T newInstance(Class<T> type) {
+            try {
+                return type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static class Output {
+        private byte[] buf = new byte[128];
+        private int pos;
+
+        void ensure(int n) {
+            if (pos + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length << 1, pos + n));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeFixedInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeFixedLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeVarLong(long v) {
+            long zigzag = (v << 1) ^ (v >> 63);
+            ensure(10);
+            while ((zigzag & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            buf[pos++] = (byte) zigzag;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeRaw(bytes);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, pos);
+        }
+    }
+
+    private static class Input {
+        private final byte[] buf;
+        private int pos;
+
+        Input(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int readByte() {
+            return buf[pos++] & 0xFF;
+        }
+
+        byte[] readRaw(int n) {
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return bytes;
+        }
+
+        int readFixedInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        long readFixedLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | readByte();
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long zigzag = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = readByte();
+                zigzag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
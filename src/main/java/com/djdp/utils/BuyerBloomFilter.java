@@ -0,0 +1,53 @@
+package com.djdp.utils;
+
+import cn.hutool.crypto.digest.DigestUtil;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/12/14:45
+ * Version: 1.0
+ * Description:已购用户布隆过滤器的大小计算和位偏移量
+ * 位偏移量的算法必须和seckill.lua保持一致：对用户id字符串做sha1，取前两个32位作为h1、h2，
+ * 第i个偏移量为 (h1 + i * h2) mod bits（双重哈希），数值都在2^53以内，Lua的double也能精确计算
+ */
+public class BuyerBloomFilter {
+
+    /**
+     * SETBIT的偏移量上限是2^32-1
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private static final int MAX_HASHES = 30;
+
+    /**
+     * 最优位数 m = -n * ln(p) / (ln2)^2
+     *
+     * @param expectedInsertions 预计的已购用户数，即分段库存
+     * @param fpp                期望的误判率
+     */
+    public static long optimalBits(long expectedInsertions, double fpp) {
+        long n = Math.max(1, expectedInsertions);
+        long bits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        return Math.max(64, Math.min(bits, MAX_BITS));
+    }
+
+    /**
+     * 最优哈希次数 k = m / n * ln2
+     */
+    public static int optimalHashes(long expectedInsertions, long bits) {
+        long n = Math.max(1, expectedInsertions);
+        int hashes = (int) Math.round((double) bits / n * Math.log(2));
+        return Math.max(1, Math.min(hashes, MAX_HASHES));
+    }
+
+    public static long[] offsets(Long userId, long bits, int hashes) {
+        String digest = DigestUtil.sha1Hex(userId.toString());
+        long h1 = Long.parseLong(digest.substring(0, 8), 16);
+        long h2 = Long.parseLong(digest.substring(8, 16), 16);
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = (h1 + i * h2) % bits;
+        }
+        return offsets;
+    }
+}
@@ -1,19 +1,27 @@
 package com.djdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.djdp.entity.Shop;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.djdp.utils.RedisConstants.*;
 
@@ -24,6 +32,12 @@ import static com.djdp.utils.RedisConstants.*;
  * Description:Redis封装的工具类。
  * 难点一：利用不知道数据类型的情况下使用泛型来指定特定的数据类型，由调用者告诉我们调用逻辑的推断。
  * 难点二：调用特定功能的函数，使用了函数式编程（指定的参数类型，返回结果类型）
+ * 二级缓存：配置了本地缓存的key前缀先查本节点的LocalCache(L1)，命中时不访问Redis也不反序列化；
+ * 数据库更新后调用invalidate删除Redis并广播，各节点删除自己的L1副本；逻辑过期的key不能删除（查询把Redis里没有当成不存在），
+ * 改用refreshWithLogicalExpire覆盖成新值后再广播。
+ * 缓存值的格式由CacheCodec决定（cache.codec），Redis里按字节读写，长度为0的值是空值标记。
+ * 注册了IdBloomFilter的前缀，Redis未命中时先判断id是否可能存在，一定不存在的不查库也不缓存空值。
+ * 逻辑过期重建在节点内合并：同一个key同时只有一个请求去抢分布式锁，热点key过期时锁的请求数从每个请求一次降到每个节点一次。
  */
 @Slf4j//日志管理
 @Component//交给Spring管理
@@ -31,22 +45,79 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final LocalCache localCache;
+
+    private final CacheCodec codec;
+
+    private final IdBloomFilter idBloomFilter;
+
+    /**
+     * 本节点正在进行的逻辑过期重建：key -> 重建
+     */
+    private final Map<String, Rebuild> rebuilds = new ConcurrentHashMap<>();
+
+    private final Counter rebuildCoalesced;
+
+    private final Counter rebuildLocked;
+
+    private final Counter rebuildLockFailed;
+
+    /**
+     * 没抢到重建锁后，本节点多久之内不再为同一个key去抢（毫秒）
+     */
+    private static final long REBUILD_RETRY_MILLIS = 100;
+
+    /**
+     * 清理过期抢锁失败记录的间隔（毫秒）
+     */
+    private static final long REBUILD_PURGE_MILLIS = 1000;
+
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    private static final byte[] LOCK_VALUE = "1".getBytes(StandardCharsets.UTF_8);
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache, CacheCodec codec,
+                       IdBloomFilter idBloomFilter, MeterRegistry meterRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.codec = codec;
+        this.idBloomFilter = idBloomFilter;
+        this.rebuildCoalesced = meterRegistry.counter("cache.rebuild", "result", "coalesced");
+        this.rebuildLocked = meterRegistry.counter("cache.rebuild", "result", "locked");
+        this.rebuildLockFailed = meterRegistry.counter("cache.rebuild", "result", "lock_failed");
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        byte[] bytes = codec.encode(value);
+        setBytes(key, bytes, unit.toMillis(time));
+        localCache.put(key, value, Long.MAX_VALUE, bytes.length);
     }
 
     public void setWithLogicalExpire(String key,Object value,Long time,TimeUnit unit){
         //设置逻辑过期
-        RedisData redisData=new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
 
         //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        byte[] bytes = codec.encodeWithExpire(value, expireTime);
+        setBytes(key, bytes, 0);
+        localCache.put(key, value, toEpochMilli(expireTime), bytes.length);
+    }
+
+    /**
+     * 逻辑过期数据的数据库更新后调用：先用新值覆盖Redis，再删除各节点的L1，下次读取拿到Redis里的新值
+     * 顺序不能反：先广播的话其他节点可能在覆盖之前又把旧值读进L1
+     */
+    public void refreshWithLogicalExpire(String key, Object value, Long time, TimeUnit unit) {
+        setWithLogicalExpire(key, value, time, unit);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 数据库更新后调用：删除Redis缓存和本节点的L1，并通知其他节点删除L1
+     */
+    public void invalidate(String key) {
+        stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
     }
 
 
@@ -54,24 +125,41 @@ public class CacheClient {
     public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
 
-        String Json = stringRedisTemplate.opsForValue().get(key);
+        //先查L1，空值也会缓存
+        LocalCache.Entry entry = localCache.get(key);
+        if (entry != null && (entry.getValue() == null || type.isInstance(entry.getValue()))) {
+            return type.cast(entry.getValue());
+        }
+
+        byte[] bytes = getBytes(key);
 
         //反向校验的底层思想：判断条件为可以直接返回结果的为true
-        if (StrUtil.isNotBlank(Json)) {
-            return JSONUtil.toBean(Json, type);
+        if (bytes != null && bytes.length > 0) {
+            R r = codec.decode(bytes, type);
+            //解不出来（类结构变了）按未命中处理，查数据库覆盖
+            if (r != null) {
+                localCache.put(key, r, Long.MAX_VALUE, bytes.length);
+                return r;
+            }
         }
 
-        //判断是否命中的是空值 因为存入的是""字符串 所以StringJson就不等于null
-        if(Json!=null){
+        //判断是否命中的是空值 因为存入的是长度为0的值 所以bytes不等于null
+        if(bytes!=null && bytes.length == 0){
+            localCache.put(key, null, Long.MAX_VALUE, 0);
             //返回错误
             return null;
         }
+        //布隆过滤器判断一定不存在的id直接返回，不查库也不写空值
+        if (!idBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
         //查数据库 如何知道呢
         R r = dbFallback.apply(id);
 
         if (r == null) {
             //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
+            setBytes(key, NULL_VALUE, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+            localCache.put(key, null, Long.MAX_VALUE, 0);
 
             return null;
         }
@@ -88,17 +176,43 @@ public class CacheClient {
             String keyPrefix,ID id,Class<R> type,Function<ID,R>dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
 
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //先查L1，逻辑上没过期的直接返回；过期了但本节点已经在重建（或刚抢锁失败，别的节点在重建）的也直接返回旧值，
+        //否则照常走Redis，由拿到锁的请求重建
+        long now = System.currentTimeMillis();
+        LocalCache.Entry entry = localCache.get(key);
+        if (entry != null && type.isInstance(entry.getValue())
+                && (entry.getLogicalExpire() > now || isRebuildPending(key, now))) {
+            return type.cast(entry.getValue());
+        }
 
+        byte[] bytes = getBytes(key);
 
-        if (StrUtil.isBlank(json)) {
+        //空值标记，说明数据库里没有
+        if (bytes != null && bytes.length == 0) {
             return null;
         }
+        if (bytes == null) {
+            //未预热或被淘汰：先过布隆过滤器，一定不存在的直接返回；可能存在的查一次数据库，和批量查询一样写回逻辑过期数据或空值
+            if (!idBloomFilter.mightContain(keyPrefix, id)) {
+                return null;
+            }
+            R r = dbFallback.apply(id);
+            if (r == null) {
+                setBytes(key, NULL_VALUE, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+                return null;
+            }
+            this.setWithLogicalExpire(key, r, time, unit);
+            return r;
+        }
 
-        //4.命中，Json反序列化为对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        //4.命中，反序列化为对象，解不出来按未命中处理
+        RedisData redisData = codec.decodeWithExpire(bytes, type);
+        if (redisData == null) {
+            return null;
+        }
+        R r = type.cast(redisData.getData());
         LocalDateTime expireTime = redisData.getExpireTime();
+        localCache.put(key, r, toEpochMilli(expireTime), bytes.length);
 
 
         //5.判断是否过期
@@ -107,15 +221,21 @@ public class CacheClient {
             return r;
         }
         //5.2 已经过期，需要缓存重建
-        //6 缓存重建
-        String lockKey = LOCK_SHOP_KEY+id;
+        //6 缓存重建：同一个节点上同一个key只有认领到重建的请求去抢分布式锁，其余请求共享它的重建，直接返回旧值
+        Rebuild rebuild = claimRebuild(key);
+        if (rebuild == null) {
+            rebuildCoalesced.increment();
+            return r;
+        }
+        String lockKey = lockKey(key);
 
         //6.1 获取互斥锁
         boolean isLock = tryLock(lockKey);
 
         //6.2 判断是否获取锁成功
         if (isLock){
-            //TODO 6.3 成功则开启独立线程，实现缓存重建 使用线程池
+            rebuildLocked.increment();
+            //6.3 成功则开启独立线程，实现缓存重建 使用线程池
             CACHE_REBUILD_EXECUTOR.submit(() ->{
                 try {
                     //重建缓存
@@ -124,13 +244,17 @@ public class CacheClient {
                     // 写入redis
                     this.setWithLogicalExpire(key,r1,time,unit);
                 } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    log.error("重建缓存失败: {}", key, e);
                 } finally {
                     //释放锁
                     unLock(lockKey);
+                    finishRebuild(key, rebuild, true);
                 }
 
             });
+        } else {
+            rebuildLockFailed.increment();
+            finishRebuild(key, rebuild, false);
         }
 
         //6.4 失败直接返回信息
@@ -138,8 +262,350 @@ public class CacheClient {
         return r;
     }
 
+    /**
+     * queryWithPassThrough的批量版本，列表页一次取多个对象：
+     * 先查L1，剩下的一次MGET，未命中的id一次交给dbFallback查数据库（IN查询），查到的和不存在的（空值）用一个pipeline写回。
+     * 整个列表只有常数次网络往返，而不是每个id一次
+     *
+     * @param dbFallback 按id批量查数据库，例如 this::listByIds
+     * @param idGetter   从查到的对象上取id，用来和请求的id对应
+     * @return id -> 对象，按ids的顺序，不存在的id不在结果里
+     */
+    public <R, ID> Map<ID, R> queryBatchWithPassThrough(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                       Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                       Long time, TimeUnit unit) {
+        Set<ID> distinct = new LinkedHashSet<>(ids);
+        Map<ID, R> found = new HashMap<>(distinct.size() * 2);
+
+        //1.先查L1，空值也会缓存
+        List<ID> remote = new ArrayList<>();
+        for (ID id : distinct) {
+            LocalCache.Entry entry = localCache.get(keyPrefix + id);
+            if (entry == null || (entry.getValue() != null && !type.isInstance(entry.getValue()))) {
+                remote.add(id);
+            } else if (entry.getValue() != null) {
+                found.put(id, type.cast(entry.getValue()));
+            }
+        }
+
+        //2.一次MGET，长度为0的是空值，解不出来的按未命中处理
+        List<byte[]> values = multiGet(keyPrefix, remote);
+        List<ID> misses = new ArrayList<>();
+        for (int i = 0; i < remote.size(); i++) {
+            ID id = remote.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                localCache.put(keyPrefix + id, null, Long.MAX_VALUE, 0);
+                continue;
+            }
+            R r = bytes == null ? null : codec.decode(bytes, type);
+            if (r == null) {
+                misses.add(id);
+                continue;
+            }
+            localCache.put(keyPrefix + id, r, Long.MAX_VALUE, bytes.length);
+            found.put(id, r);
+        }
+
+        //3.未命中的先过布隆过滤器，剩下的一次查数据库，用一个pipeline写回
+        misses = idBloomFilter.filter(keyPrefix, misses);
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = loadBatch(misses, dbFallback, idGetter);
+            List<PendingWrite> writes = new ArrayList<>(misses.size());
+            for (ID id : misses) {
+                String key = keyPrefix + id;
+                R r = loaded.get(id);
+                if (r == null) {
+                    writes.add(new PendingWrite(key, NULL_VALUE, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)));
+                    localCache.put(key, null, Long.MAX_VALUE, 0);
+                    continue;
+                }
+                byte[] bytes = codec.encode(r);
+                writes.add(new PendingWrite(key, bytes, unit.toMillis(time)));
+                localCache.put(key, r, Long.MAX_VALUE, bytes.length);
+                found.put(id, r);
+            }
+            setBytesPipelined(writes);
+        }
+        return inOrder(distinct, found);
+    }
+
+    /**
+     * queryWithLogicalExpire的批量版本：
+     * 1.L1里逻辑上没过期的直接用，剩下的一次MGET；
+     * 2.Redis里没有的id一次查数据库，用一个pipeline写回（带逻辑过期时间），数据库也没有的写空值，避免每次都查库；
+     * 3.已经逻辑过期的照常返回旧值，过期的id在一个pipeline里抢各自的重建锁，抢到的交给一个后台任务批量重建。
+     *
+     * @return id -> 对象，按ids的顺序，不存在的id不在结果里
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                         Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter,
+                                                         Long time, TimeUnit unit) {
+        Set<ID> distinct = new LinkedHashSet<>(ids);
+        Map<ID, R> found = new HashMap<>(distinct.size() * 2);
+        long now = System.currentTimeMillis();
+
+        //1.先查L1，逻辑上没过期的直接返回
+        List<ID> remote = new ArrayList<>();
+        for (ID id : distinct) {
+            LocalCache.Entry entry = localCache.get(keyPrefix + id);
+            if (entry != null && entry.getLogicalExpire() > now && type.isInstance(entry.getValue())) {
+                found.put(id, type.cast(entry.getValue()));
+            } else {
+                remote.add(id);
+            }
+        }
+
+        //2.一次MGET
+        List<byte[]> values = multiGet(keyPrefix, remote);
+        List<ID> misses = new ArrayList<>();
+        List<ID> expired = new ArrayList<>();
+        for (int i = 0; i < remote.size(); i++) {
+            ID id = remote.get(i);
+            byte[] bytes = values.get(i);
+            if (bytes != null && bytes.length == 0) {
+                continue;
+            }
+            RedisData redisData = bytes == null ? null : codec.decodeWithExpire(bytes, type);
+            if (redisData == null) {
+                misses.add(id);
+                continue;
+            }
+            long expireMillis = toEpochMilli(redisData.getExpireTime());
+            localCache.put(keyPrefix + id, redisData.getData(), expireMillis, bytes.length);
+            found.put(id, type.cast(redisData.getData()));
+            if (expireMillis <= now) {
+                expired.add(id);
+            }
+        }
+
+        //3.Redis里没有的先过布隆过滤器，剩下的一次查数据库并写回
+        misses = idBloomFilter.filter(keyPrefix, misses);
+        if (!misses.isEmpty()) {
+            found.putAll(reloadWithLogicalExpire(keyPrefix, misses, dbFallback, idGetter, time, unit));
+        }
+
+        //4.过期的后台批量重建：本节点已经在重建的跳过，认领到的在一个pipeline里抢锁，没抢到锁的说明别的节点正在重建
+        Map<ID, Rebuild> claimed = new LinkedHashMap<>();
+        for (ID id : expired) {
+            Rebuild rebuild = claimRebuild(keyPrefix + id);
+            if (rebuild != null) {
+                claimed.put(id, rebuild);
+            } else {
+                rebuildCoalesced.increment();
+            }
+        }
+        if (!claimed.isEmpty()) {
+            List<ID> locked = tryLockBatch(keyPrefix, new ArrayList<>(claimed.keySet()));
+            rebuildLocked.increment(locked.size());
+            rebuildLockFailed.increment(claimed.size() - locked.size());
+            for (Map.Entry<ID, Rebuild> e : claimed.entrySet()) {
+                if (!locked.contains(e.getKey())) {
+                    finishRebuild(keyPrefix + e.getKey(), e.getValue(), false);
+                }
+            }
+            if (!locked.isEmpty()) {
+                CACHE_REBUILD_EXECUTOR.submit(() -> {
+                    try {
+                        reloadWithLogicalExpire(keyPrefix, locked, dbFallback, idGetter, time, unit);
+                    } catch (Exception e) {
+                        log.error("批量重建缓存失败: {}{}", keyPrefix, locked, e);
+                    } finally {
+                        stringRedisTemplate.delete(locked.stream().map(id -> lockKey(keyPrefix + id)).collect(Collectors.toList()));
+                        locked.forEach(id -> finishRebuild(keyPrefix + id, claimed.get(id), true));
+                    }
+                });
+            }
+        }
+        return inOrder(distinct, found);
+    }
+
+    /**
+     * 一次查数据库，带逻辑过期时间用一个pipeline写回；数据库里没有的写空值
+     */
+    private <R, ID> Map<ID, R> reloadWithLogicalExpire(String keyPrefix, List<ID> ids, Function<List<ID>, List<R>> dbFallback,
+                                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        Map<ID, R> loaded = loadBatch(ids, dbFallback, idGetter);
+        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(unit.toSeconds(time));
+        List<PendingWrite> writes = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            String key = keyPrefix + id;
+            R r = loaded.get(id);
+            if (r == null) {
+                writes.add(new PendingWrite(key, NULL_VALUE, TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)));
+                continue;
+            }
+            byte[] bytes = codec.encodeWithExpire(r, expireTime);
+            writes.add(new PendingWrite(key, bytes, 0));
+            localCache.put(key, r, toEpochMilli(expireTime), bytes.length);
+        }
+        setBytesPipelined(writes);
+        return loaded;
+    }
+
+    private static <R, ID> Map<ID, R> loadBatch(List<ID> ids, Function<List<ID>, List<R>> dbFallback, Function<R, ID> idGetter) {
+        List<R> rows = dbFallback.apply(ids);
+        Map<ID, R> loaded = new HashMap<>(ids.size() * 2);
+        if (rows != null) {
+            for (R r : rows) {
+                loaded.put(idGetter.apply(r), r);
+            }
+        }
+        return loaded;
+    }
+
+    private static <R, ID> Map<ID, R> inOrder(Set<ID> ids, Map<ID, R> found) {
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    private byte[] getBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+    }
+
+    /**
+     * @param ttlMillis 小于等于0时不过期
+     */
+    private void setBytes(String key, byte[] value, long ttlMillis) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            if (ttlMillis > 0) {
+                connection.pSetEx(rawKey, ttlMillis, value);
+            } else {
+                connection.set(rawKey, value);
+            }
+            return null;
+        });
+    }
+
+    private <ID> List<byte[]> multiGet(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        byte[][] rawKeys = new byte[ids.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = (keyPrefix + ids.get(i)).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        return values != null ? values : Collections.nCopies(ids.size(), null);
+    }
+
+    private void setBytesPipelined(List<PendingWrite> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (PendingWrite write : writes) {
+                byte[] rawKey = write.key.getBytes(StandardCharsets.UTF_8);
+                if (write.ttlMillis > 0) {
+                    connection.pSetEx(rawKey, write.ttlMillis, write.value);
+                } else {
+                    connection.set(rawKey, write.value);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 在一个pipeline里对每个id执行 SET lock NX EX，返回抢到锁的id
+     */
+    private <ID> List<ID> tryLockBatch(String keyPrefix, List<ID> ids) {
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (ID id : ids) {
+                connection.set(lockKey(keyPrefix + id).getBytes(StandardCharsets.UTF_8), LOCK_VALUE,
+                        Expiration.seconds(LOCK_CACHE_TTL), RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        List<ID> locked = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (BooleanUtil.isTrue((Boolean) results.get(i))) {
+                locked.add(ids.get(i));
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * 本节点上key的逻辑过期重建，测试里等重建完成时使用
+     *
+     * @return 正在进行的重建完成时结束；没有重建时返回已完成的future
+     */
+    CompletableFuture<Void> pendingRebuild(String key) {
+        Rebuild rebuild = rebuilds.get(key);
+        return rebuild != null ? rebuild.future : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 认领key的重建，本节点已经有重建在进行、或刚抢锁失败还在退避期内时返回null
+     */
+    private Rebuild claimRebuild(String key) {
+        long now = System.currentTimeMillis();
+        Rebuild claimed = new Rebuild();
+        Rebuild current = rebuilds.compute(key, (k, r) -> r == null || r.retryAt <= now ? claimed : r);
+        return current == claimed ? claimed : null;
+    }
+
+    private boolean isRebuildPending(String key, long now) {
+        Rebuild rebuild = rebuilds.get(key);
+        if (rebuild == null) {
+            return false;
+        }
+        if (rebuild.retryAt > now) {
+            return true;
+        }
+        //退避期已过，顺手移除
+        rebuilds.remove(key, rebuild);
+        return false;
+    }
+
+    /**
+     * 定期清掉退避期已过的抢锁失败记录，之后再没被访问的key不会一直留在map里；
+     * remove(key, value)只删这一条，期间被新的重建替换掉的不受影响
+     */
+    @Scheduled(fixedDelay = REBUILD_PURGE_MILLIS)
+    public void purgeExpiredRebuilds() {
+        long now = System.currentTimeMillis();
+        rebuilds.forEach((key, rebuild) -> {
+            if (rebuild.retryAt <= now) {
+                rebuilds.remove(key, rebuild);
+            }
+        });
+    }
+
+    /**
+     * 重建结束时移除；没抢到锁时保留一小段时间，期间本节点的其他请求不再去抢，过了退避期由下一个请求替换或定期清理移除
+     */
+    private void finishRebuild(String key, Rebuild rebuild, boolean locked) {
+        if (locked) {
+            rebuilds.remove(key, rebuild);
+        } else {
+            rebuild.retryAt = System.currentTimeMillis() + REBUILD_RETRY_MILLIS;
+        }
+        rebuild.future.complete(null);
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 重建锁跟着缓存key走：lock:cache:shop:1，不同前缀的同一个id不会互相抢锁
+     */
+    private static String lockKey(String key) {
+        return LOCK_CACHE_KEY + key;
+    }
+
     private boolean tryLock(String key){
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_CACHE_TTL, TimeUnit.SECONDS);
         //直接返回Boolean会有一个装箱和拆箱的空指针问题，使用工具类
         return BooleanUtil.isTrue(flag);
     }
@@ -148,4 +614,24 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    private static class Rebuild {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        /**
+         * 重建进行中为Long.MAX_VALUE，没抢到锁时为退避截止时间
+         */
+        private volatile long retryAt = Long.MAX_VALUE;
+    }
+
+    private static class PendingWrite {
+        private final String key;
+        private final byte[] value;
+        private final long ttlMillis;
+
+        PendingWrite(String key, byte[] value, long ttlMillis) {
+            this.key = key;
+            this.value = value;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
 }
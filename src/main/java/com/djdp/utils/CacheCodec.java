@@ -0,0 +1,30 @@
+package com.djdp.utils;
+
+import java.time.LocalDateTime;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/15/10:00
+ * Version: 1.0
+ * Description:CacheClient缓存值的编解码，cache.codec 选择实现：json（默认，兼容已有的缓存）或 binary
+ * 长度为0的值是缓存穿透的空值标记，由CacheClient处理，不会交给编解码器
+ */
+public interface CacheCodec {
+
+    byte[] encode(Object value);
+
+    /**
+     * @return 解不出来（格式不对、类结构已变化）时返回null，按未命中处理
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 带逻辑过期时间编码
+     */
+    byte[] encodeWithExpire(Object value, LocalDateTime expireTime);
+
+    /**
+     * @return data已经是type类型的RedisData；解不出来时返回null
+     */
+    <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type);
+}
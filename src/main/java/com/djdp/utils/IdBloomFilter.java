@@ -0,0 +1,249 @@
+package com.djdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.djdp.utils.RedisConstants.CACHE_BLOOM_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/16/14:20
+ * Version: 1.0
+ * Description:按缓存key前缀维护的id布隆过滤器，防止不存在的id穿透到数据库
+ * 缓存空值只能挡住重复的id，随机扫描id时每个id还是会查一次数据库，并在Redis里留下一个空值key。
+ * CacheClient在Redis未命中、查数据库之前先问过滤器，一定不存在的id直接返回null，不查库也不写空值。
+ * 1.位数组放在Redis里，所有节点共用；cache:bloom:名字 是元数据hash{key, bits, hashes, builtAt}，key指向当前的位数组；
+ * 2.启动后和之后定期（IdBloomFilterRebuilder）从表里按id分页全量重建：写到一个新的位数组，完成后原子切换，旧的删除；
+ * 3.新增数据后调用add，重建期间同时写新旧两个位数组，切换后不会丢；
+ * 4.过滤器还没建好、没有注册的前缀一律放行，只会退化成原来的行为。
+ * 偏移量算法和BuyerBloomFilter一致，Java（重建）和lua（判断、新增）算出的位置相同。
+ */
+@Slf4j
+@Component
+public class IdBloomFilter {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry scriptRegistry;
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${cache.bloom.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 期望的误判率
+     */
+    @Value("${cache.bloom.fpp:0.001}")
+    private double fpp;
+
+    /**
+     * 按当前行数的多少倍分配位数，给两次重建之间新增的数据留余量
+     */
+    @Value("${cache.bloom.headroom:2.0}")
+    private double headroom;
+
+    /**
+     * 预计元素数的下限，表很小时也按这个数分配
+     */
+    @Value("${cache.bloom.min-expected:10000}")
+    private long minExpected;
+
+    /**
+     * 重建时每次从表里取多少个id
+     */
+    @Value("${cache.bloom.page-size:1000}")
+    private int pageSize;
+
+    /**
+     * 缓存key前缀 -> 过滤器
+     */
+    private final Map<String, Filter> filters = new ConcurrentHashMap<>();
+
+    public IdBloomFilter(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param keyPrefix CacheClient查询时用的key前缀
+     * @param name      过滤器名字，决定Redis里的key
+     * @param source    从表里读id
+     */
+    public void register(String keyPrefix, String name, IdSource source) {
+        Counter rejected = meterRegistry.counter("cache.bloom.rejected", "cache", name);
+        filters.put(keyPrefix, new Filter(name, CACHE_BLOOM_KEY + name, source, rejected));
+    }
+
+    public Set<String> prefixes() {
+        return filters.keySet();
+    }
+
+    public boolean mightContain(String keyPrefix, Object id) {
+        return !filter(keyPrefix, Collections.singletonList(id)).isEmpty();
+    }
+
+    /**
+     * 一次判断一批id
+     *
+     * @return 可能存在的id，保持原来的顺序；未开启或没注册的前缀原样返回
+     */
+    public <ID> List<ID> filter(String keyPrefix, List<ID> ids) {
+        Filter filter = filters.get(keyPrefix);
+        if (!enabled || filter == null || ids.isEmpty()) {
+            return ids;
+        }
+        String[] args = ids.stream().map(String::valueOf).toArray(String[]::new);
+        List<?> result = scriptRegistry.execute("idbloomcheck", List.class, Collections.singletonList(filter.metaKey), (Object[]) args);
+        List<ID> present = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            if (result == null || ((Number) result.get(i)).intValue() == 1) {
+                present.add(ids.get(i));
+            }
+        }
+        filter.rejected.increment(ids.size() - present.size());
+        return present;
+    }
+
+    /**
+     * 新增数据后调用，没注册的前缀忽略
+     */
+    public void add(String keyPrefix, Long... ids) {
+        Filter filter = filters.get(keyPrefix);
+        if (!enabled || filter == null || ids.length == 0) {
+            return;
+        }
+        String[] args = Arrays.stream(ids).map(String::valueOf).toArray(String[]::new);
+        scriptRegistry.execute("idbloomadd", Collections.singletonList(filter.metaKey), (Object[]) args);
+    }
+
+    /**
+     * 从来没建过或者距上次重建超过interval毫秒
+     */
+    public boolean needsRebuild(String keyPrefix, long interval) {
+        Filter filter = filters.get(keyPrefix);
+        if (!enabled || filter == null) {
+            return false;
+        }
+        Object builtAt = stringRedisTemplate.opsForHash().get(filter.metaKey, "builtAt");
+        return builtAt == null || System.currentTimeMillis() - Long.parseLong(builtAt.toString()) >= interval;
+    }
+
+    /**
+     * 从表里全量重建，调用方负责加分布式锁，同一个过滤器同时只有一个节点在重建
+     *
+     * @return 是否切换成功
+     */
+    public boolean rebuild(String keyPrefix) {
+        Filter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        long expected = Math.max(minExpected, (long) Math.ceil(filter.source.count() * headroom));
+        long bits = BuyerBloomFilter.optimalBits(expected, fpp);
+        int hashes = BuyerBloomFilter.optimalHashes(expected, bits);
+
+        //1.登记正在重建的位数组，之后的add同时写入；上次重建中途失败留下的位数组先删掉
+        Object stale = stringRedisTemplate.opsForHash().get(filter.metaKey, "building");
+        if (stale != null) {
+            stringRedisTemplate.delete(stale.toString());
+        }
+        String building = filter.metaKey + ":" + begin;
+        Map<String, String> meta = new HashMap<>();
+        meta.put("building", building);
+        meta.put("buildingBits", String.valueOf(bits));
+        meta.put("buildingHashes", String.valueOf(hashes));
+        stringRedisTemplate.opsForHash().putAll(filter.metaKey, meta);
+
+        //2.按id分页写入，每页一个pipeline
+        byte[] rawKey = building.getBytes(StandardCharsets.UTF_8);
+        long afterId = 0;
+        long rows = 0;
+        List<Long> ids;
+        do {
+            ids = filter.source.idsAfter(afterId, pageSize);
+            List<Long> page = ids;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long id : page) {
+                    for (long offset : BuyerBloomFilter.offsets(id, bits, hashes)) {
+                        connection.setBit(rawKey, offset, true);
+                    }
+                }
+                return null;
+            });
+            rows += ids.size();
+            if (!ids.isEmpty()) {
+                afterId = ids.get(ids.size() - 1);
+            }
+        } while (ids.size() == pageSize);
+
+        //3.原子切换
+        Long swapped = scriptRegistry.execute("idbloomswap", Collections.singletonList(filter.metaKey),
+                building, String.valueOf(System.currentTimeMillis()));
+        boolean success = swapped != null && swapped == 1;
+        log.info("id布隆过滤器重建{}: {}, 行数={}, bits={}, hashes={}, 耗时={}ms",
+                success ? "完成" : "被取代", filter.name, rows, bits, hashes, System.currentTimeMillis() - begin);
+        return success;
+    }
+
+    /**
+     * 过滤器的数据来源
+     */
+    public interface IdSource {
+
+        /**
+         * 当前行数，用来决定位数
+         */
+        long count();
+
+        /**
+         * id大于afterId的前limit个id，按id升序
+         */
+        List<Long> idsAfter(long afterId, int limit);
+
+        /**
+         * 主键列为id的MyBatis-Plus服务
+         */
+        static <T> IdSource of(IService<T> service) {
+            return new IdSource() {
+                @Override
+                public long count() {
+                    return service.count();
+                }
+
+                @Override
+                public List<Long> idsAfter(long afterId, int limit) {
+                    return service.listObjs(new QueryWrapper<T>().select("id").gt("id", afterId).orderByAsc("id")
+                            .last("LIMIT " + limit), id -> ((Number) id).longValue());
+                }
+            };
+        }
+    }
+
+    private static class Filter {
+        private final String name;
+        private final String metaKey;
+        private final IdSource source;
+        private final Counter rejected;
+
+        Filter(String name, String metaKey, IdSource source, Counter rejected) {
+            this.name = name;
+            this.metaKey = metaKey;
+            this.source = source;
+            this.rejected = rejected;
+        }
+    }
+}
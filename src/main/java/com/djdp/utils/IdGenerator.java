@@ -0,0 +1,33 @@
+package com.djdp.utils;
+
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/12/10:00
+ * Version: 1.0
+ * Description:全局id生成器，高位都是从BEGIN_TIMESTAMP开始的秒数，不同实现生成的id可以放在一起按时间排序
+ * RedisIdWorker：Redis号段自增（默认）；SnowflakeIdWorker：本地雪花算法（id.mode=snowflake）
+ */
+public interface IdGenerator {
+
+    /**
+     * 开始时间戳
+     */
+    long BEGIN_TIMESTAMP = 1640995200L;
+
+    /**
+     * 当前秒数，沿用RedisIdWorker原来的口径：本地时间按UTC折算
+     */
+    static long nowSecond() {
+        Instant instant = Instant.now();
+        return instant.getEpochSecond() + ZoneId.systemDefault().getRules().getOffset(instant).getTotalSeconds();
+    }
+
+    /**
+     * @param keyPrefix 业务前缀
+     * @return 生成id值
+     */
+    long nextId(String keyPrefix);
+}
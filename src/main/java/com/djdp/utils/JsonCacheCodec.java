@@ -0,0 +1,67 @@
+package com.djdp.utils;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/15/10:10
+ * Version: 1.0
+ * Description:JSON编解码，格式和原来的CacheClient一致，逻辑过期的值是RedisData的JSON；
+ * 读逻辑过期的值时只解析一次JSON，data直接从同一个JSONObject转成目标类型
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "cache.codec", havingValue = "json", matchIfMissing = true)
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+        } catch (RuntimeException e) {
+            log.debug("缓存值解码失败, 按未命中处理: {}", type.getName(), e);
+            return null;
+        }
+    }
+
+    @Override
+    public byte[] encodeWithExpire(Object value, LocalDateTime expireTime) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(expireTime);
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> RedisData decodeWithExpire(byte[] bytes, Class<T> type) {
+        JSONObject json;
+        try {
+            json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+            log.debug("缓存值解码失败, 按未命中处理: {}", type.getName(), e);
+            return null;
+        }
+        JSONObject data = json.getJSONObject("data");
+        LocalDateTime expireTime = Convert.toLocalDateTime(json.get("expireTime"));
+        if (data == null || expireTime == null) {
+            return null;
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(data.toBean(type));
+        redisData.setExpireTime(expireTime);
+        return redisData;
+    }
+}
@@ -0,0 +1,163 @@
+package com.djdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.djdp.config.LocalCacheProperties;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.djdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/14/09:40
+ * Version: 1.0
+ * Description:CacheClient的本地一级缓存(L1)，放在Redis前面，缓存反序列化好的对象
+ * 1.容量同时受条目数和总权重限制：每个条目的权重至少是 总权重/条目数，所以条目数不会超过上限，总权重也不会超过上限；
+ * 2.有效期按key前缀配置，没配置的前缀不进L1；
+ * 3.写数据库后调用invalidate，本节点直接删除，再通过Redis发布订阅通知其他节点删除各自的副本。
+ * 发布订阅不保证送达，L1的有效期就是旧数据最多能存活的时间，所以要配得比Redis短得多。
+ * L1里的对象是多个请求共享的，调用方不能修改。
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+
+    private static final String SEPARATOR = "|";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final LocalCacheProperties properties;
+
+    /**
+     * 按前缀长度倒序，最长匹配优先
+     */
+    private final List<Map.Entry<String, Long>> prefixTtls;
+
+    private final Cache<String, Entry> cache;
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate, LocalCacheProperties properties, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.properties = properties;
+        this.prefixTtls = new ArrayList<>(properties.getTtl().entrySet());
+        this.prefixTtls.sort(Comparator.comparingInt((Map.Entry<String, Long> e) -> e.getKey().length()).reversed());
+        if (!properties.isEnabled()) {
+            this.cache = null;
+            return;
+        }
+        long minWeight = Math.max(1, properties.getMaximumWeight() / Math.max(1, properties.getMaximumSize()));
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(properties.getMaximumWeight())
+                .weigher((String key, Entry entry) -> (int) Math.min(Integer.MAX_VALUE, Math.max(minWeight, entry.weight)))
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return TimeUnit.MILLISECONDS.toNanos(ttlOf(key));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return TimeUnit.MILLISECONDS.toNanos(ttlOf(key));
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "cache.local");
+    }
+
+    /**
+     * 这个key是否走L1
+     */
+    public boolean isCacheable(String key) {
+        return cache != null && ttlOf(key) > 0;
+    }
+
+    public Entry get(String key) {
+        return cache == null ? null : cache.getIfPresent(key);
+    }
+
+    /**
+     * @param value         反序列化好的对象，null表示数据库里不存在
+     * @param logicalExpire 逻辑过期时间戳（毫秒），不是逻辑过期的数据传Long.MAX_VALUE
+     * @param weight        序列化后的长度
+     */
+    public void put(String key, Object value, long logicalExpire, int weight) {
+        if (!isCacheable(key)) {
+            return;
+        }
+        cache.put(key, new Entry(value, logicalExpire, key.length() + weight));
+    }
+
+    /**
+     * 删除本节点的副本，并通知其他节点删除
+     */
+    public void invalidate(String key) {
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+        if (properties.isEnabled()) {
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, NodeHolder.getNodeId() + SEPARATOR + key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        if (cache == null) {
+            return;
+        }
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        //自己发的消息在invalidate里已经处理过
+        if (NodeHolder.getNodeId().equals(StrUtil.subBefore(body, SEPARATOR, false))) {
+            return;
+        }
+        cache.invalidate(StrUtil.subAfter(body, SEPARATOR, false));
+    }
+
+    private long ttlOf(String key) {
+        for (Map.Entry<String, Long> prefixTtl : prefixTtls) {
+            if (key.startsWith(prefixTtl.getKey())) {
+                return prefixTtl.getValue();
+            }
+        }
+        return 0;
+    }
+
+    public static class Entry {
+        private final Object value;
+        private final long logicalExpire;
+        private final int weight;
+
+        Entry(Object value, long logicalExpire, int weight) {
+            this.value = value;
+            this.logicalExpire = logicalExpire;
+            this.weight = weight;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public long getLogicalExpire() {
+            return logicalExpire;
+        }
+    }
+}
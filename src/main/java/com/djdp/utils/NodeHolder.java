@@ -0,0 +1,20 @@
+package com.djdp.utils;
+
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.system.SystemUtil;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/02/10:12
+ * Version: 1.0
+ * Description:当前应用节点的标识，格式为 主机名:进程号
+ * 用于给stream消费者、分布式租约等需要区分节点的地方命名，同一台机器上启动多个实例也不会重名
+ */
+public class NodeHolder {
+
+    private static final String NODE_ID = NetUtil.getLocalHostName() + ":" + SystemUtil.getCurrentPID();
+
+    public static String getNodeId() {
+        return NODE_ID;
+    }
+}
@@ -0,0 +1,164 @@
+package com.djdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.djdp.dto.Result;
+import com.djdp.dto.SeckillOrderResult;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.SeckillOrderStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.djdp.utils.RedisConstants.SECKILL_RESULT_CHANNEL;
+import static com.djdp.utils.RedisConstants.SECKILL_RESULT_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/04/10:30
+ * Version: 1.0
+ * Description:秒杀订单的结果记录
+ * 秒杀脚本抢到资格后、订单消息入队前写入 seckill:result:{orderId} = "0:userId"（排队中），
+ * 订单消费者落库或拒绝后覆盖为 "1:userId" / "2:userId"，并通过发布订阅通知所有节点，
+ * 唤醒本节点上长轮询这个订单的请求，客户端不用再反复查MySQL。
+ */
+@Slf4j
+@Component
+public class OrderResultRegistry implements MessageListener {
+
+    private static final String SEPARATOR = ":";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 订单id -> 正在长轮询这个订单的请求
+     */
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 结果记录的有效期（秒）
+     */
+    @Value("${seckill.result.ttl:1800}")
+    private long resultTtl;
+
+    /**
+     * 长轮询最长等待时间（毫秒）
+     */
+    @Value("${seckill.result.max-wait:30000}")
+    private long maxWait;
+
+    public OrderResultRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 写入排队中的记录。要在订单消息入队之前写，否则可能覆盖消费者已经写入的结果
+     */
+    public void recordPending(long orderId, Long userId) {
+        stringRedisTemplate.opsForValue().set(SECKILL_RESULT_KEY + orderId,
+                SeckillOrderStatus.PENDING.getCode() + SEPARATOR + userId, resultTtl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 记录订单的处理结果。在事务中调用时等事务结束后再写：
+     * 成功只在提交后写，拒绝不论提交还是回滚都要写（库存不足时正是靠回滚撤销插入的订单）
+     */
+    public void record(VoucherOrder voucherOrder, SeckillOrderStatus status) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            write(voucherOrder, status);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int completionStatus) {
+                if (status == SeckillOrderStatus.SUCCESS && completionStatus != STATUS_COMMITTED) {
+                    return;
+                }
+                write(voucherOrder, status);
+            }
+        });
+    }
+
+    private void write(VoucherOrder voucherOrder, SeckillOrderStatus status) {
+        try {
+            String value = status.getCode() + SEPARATOR + voucherOrder.getUserId();
+            stringRedisTemplate.opsForValue().set(SECKILL_RESULT_KEY + voucherOrder.getId(), value, resultTtl, TimeUnit.SECONDS);
+            stringRedisTemplate.convertAndSend(SECKILL_RESULT_CHANNEL, voucherOrder.getId() + SEPARATOR + value);
+        } catch (Exception e) {
+            //结果记录写失败不影响订单本身，客户端查不到记录时会按主键回查数据库
+            log.error("写入订单结果记录失败, orderId={}", voucherOrder.getId(), e);
+        }
+    }
+
+    /**
+     * 查询结果记录，不存在（未下单或已过期）返回null
+     */
+    public SeckillOrderResult get(Long orderId) {
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_RESULT_KEY + orderId);
+        if (StrUtil.isBlank(value)) {
+            return null;
+        }
+        return parse(orderId, value);
+    }
+
+    /**
+     * 长轮询：订单有结果或等待超时（返回排队中）时完成
+     */
+    public DeferredResult<Result> await(SeckillOrderResult pending, long waitMillis) {
+        Long orderId = pending.getOrderId();
+        DeferredResult<Result> deferredResult = new DeferredResult<>(Math.min(waitMillis, maxWait), Result.ok(pending));
+        Queue<DeferredResult<Result>> queue = waiters.computeIfAbsent(orderId, k -> new ConcurrentLinkedQueue<>());
+        queue.add(deferredResult);
+        deferredResult.onCompletion(() -> {
+            queue.remove(deferredResult);
+            if (queue.isEmpty()) {
+                waiters.remove(orderId, queue);
+            }
+        });
+        //注册之后再查一次，避免查询和注册之间结果恰好写入而错过通知
+        SeckillOrderResult current = get(orderId);
+        if (current != null && current.getStatus() != SeckillOrderStatus.PENDING.getCode().intValue()) {
+            deferredResult.setResult(Result.ok(current));
+        }
+        return deferredResult;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            Long orderId = Long.valueOf(StrUtil.subBefore(body, SEPARATOR, false));
+            Queue<DeferredResult<Result>> queue = waiters.get(orderId);
+            if (queue == null) {
+                return;
+            }
+            SeckillOrderResult result = parse(orderId, StrUtil.subAfter(body, SEPARATOR, false));
+            for (DeferredResult<Result> deferredResult : queue) {
+                deferredResult.setResult(Result.ok(result));
+            }
+        } catch (IllegalArgumentException e) {
+            log.error("无法识别的订单结果消息: {}", body);
+        }
+    }
+
+    /**
+     * 结果记录格式 "状态码:用户id"
+     */
+    private SeckillOrderResult parse(Long orderId, String value) {
+        SeckillOrderStatus status = SeckillOrderStatus.of(Integer.parseInt(StrUtil.subBefore(value, SEPARATOR, false)));
+        Long userId = Long.valueOf(StrUtil.subAfter(value, SEPARATOR, false));
+        return new SeckillOrderResult(orderId, userId, status);
+    }
+}
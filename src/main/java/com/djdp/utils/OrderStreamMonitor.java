@@ -0,0 +1,39 @@
+package com.djdp.utils;
+
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Objects;
+
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_GROUP;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/09/10:15
+ * Version: 1.0
+ * Description:订单stream消费进度的查询
+ */
+@Component
+public class OrderStreamMonitor {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public OrderStreamMonitor(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 消费者组已经读到stream的最后一条，并且pending-list为空，说明stream里的订单都已落库
+     */
+    public boolean isDrained(String queueName) {
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(queueName))) {
+            return true;
+        }
+        StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(queueName);
+        return stringRedisTemplate.opsForStream().groups(queueName).stream()
+                .filter(group -> STREAM_ORDERS_GROUP.equals(group.groupName()))
+                .anyMatch(group -> group.pendingCount() == 0
+                        && Objects.equals(group.lastDeliveredId(), stream.lastGeneratedId()));
+    }
+}
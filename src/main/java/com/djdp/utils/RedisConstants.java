@@ -10,13 +10,36 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_BLOOM_KEY = "cache:bloom:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
 
     public static final String CACHE_SHOPLIST_KEY = "cache:shopList:1";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
+    public static final Long LOCK_CACHE_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_BUYER_KEY = "seckill:buyer:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_RESULT_KEY = "seckill:result:";
+    public static final String SECKILL_RESULT_CHANNEL = "seckill:result";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String STREAM_ORDERS_KEY = "stream.orders.";
+    public static final String STREAM_ORDERS_GROUP = "g1";
+    public static final String STREAM_ORDERS_DLQ_KEY = "stream.orders.dlq";
+    public static final String STREAM_ORDERS_ARCHIVE_KEY = "stream.orders.archived:";
+    public static final String ORDER_UNPAID_KEY = "order:unpaid";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
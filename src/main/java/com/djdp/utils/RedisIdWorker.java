@@ -1,11 +1,19 @@
 package com.djdp.utils;
 
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Author: JhonDai
@@ -13,15 +21,42 @@ import java.time.format.DateTimeFormatter;
  * Version: 1.0
  * Description:
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
+    private static final int COUNT_BITS = 32;
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private StringRedisTemplate stringRedisTemplate;
+
     /**
-     * 开始时间戳
+     * 号段大小：每次INCRBY租用多少个序列号。默认1，每个id都INCR一次，保持原来的全局顺序；
+     * 大于1时开启号段模式，用跨节点顺序换掉每个id一次的网络往返
      */
-    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    @Value("${id.segment.size:1}")
+    private long segmentSize;
 
-    private static final int COUNT_BITS = 32;
-    private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 当前号段剩余比例低于该值时异步预取下一个号段
+     */
+    @Value("${id.segment.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    /**
+     * icr:前缀:日期 -> 号段
+     */
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-prefetch-").setDaemon(true).build());
+
+    /**
+     * 缓存当天的日期字符串，跨天时才重新格式化
+     */
+    private volatile CachedDay cachedDay = new CachedDay(Long.MIN_VALUE, null);
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
@@ -30,24 +65,145 @@ public class RedisIdWorker {
     /**
      * 自增id 类似于雪花算法
      * 思想：利用redis来做分类生成对应的id值：利用 ：：的特性还能做到按日期查询
+     * 号段模式（id.segment.size大于1时开启，默认关闭）：每个前缀每天的序列号按号段从Redis租用（INCRBY segmentSize），在本地用原子游标发号，
+     * 快用完时后台预取下一段，大部分id不需要访问Redis。位布局不变：高位时间戳，低32位当天序列号。
+     * 进程重启时没发完的号段直接作废，序列号会有空洞但不会重复。
+     * 顺序：号段模式下同一秒内各节点的id按各自租到的号段交错发出，只保证唯一、跨秒递增和单节点内递增，
+     * 不再保证同一秒内跨节点按发号先后有序，所以只在不依赖这个顺序的部署里按需开启；默认每个id INCR一次，全局严格有序。
      *
      * @param keyPrefix 自定义前缀
      * @return 生成id值
      */
+    @Override
     public long nextId(String keyPrefix) {
 
         //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long nowSecond = IdGenerator.nowSecond();
         long timestamp = nowSecond - BEGIN_TIMESTAMP;
 
 
         //2.生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long day = Math.floorDiv(nowSecond, SECONDS_PER_DAY);
+        String key = "icr:" + keyPrefix + ":" + date(day);
+        long count;
+        //跨天的瞬间还拿着前一天时间戳的请求直接INCR，不再为前一天建号段
+        if (segmentSize <= 1 || day < cachedDay.day) {
+            count = stringRedisTemplate.opsForValue().increment(key);
+        } else {
+            count = nextCount(key);
+        }
 
         //3.拼接并返回
         return timestamp << COUNT_BITS | count;
 
     }
+
+    private String date(long day) {
+        CachedDay cached = cachedDay;
+        if (cached.day == day) {
+            return cached.date;
+        }
+        String date = LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+        if (day > cached.day) {
+            advanceDay(day, date);
+        }
+        return date;
+    }
+
+    /**
+     * 日期只往前推进：跨天时各线程拿到的时间戳可能一前一后，晚到的前一天请求不能把缓存改回去、把新一天的号段清掉
+     */
+    private synchronized void advanceDay(long day, String date) {
+        if (day <= cachedDay.day) {
+            return;
+        }
+        cachedDay = new CachedDay(day, date);
+        //跨天后前一天的号段不会再用到；清理时正在用旧号段的线程发完这个号段即止，号段是INCRBY租来的，不会重复
+        buffers.keySet().removeIf(k -> !k.endsWith(date));
+    }
+
+    private long nextCount(String key) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(key, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null) {
+                long count = segment.cursor.incrementAndGet();
+                if (count <= segment.end) {
+                    //剩余量刚好降到阈值时触发一次预取
+                    if (segment.end - count == (long) (segmentSize * prefetchRatio)) {
+                        buffer.prefetch();
+                    }
+                    return count;
+                }
+            }
+            buffer.switchSegment(segment);
+        }
+    }
+
+    /**
+     * 租用一个号段 INCRBY icr:前缀:日期 segmentSize，得到 (end - segmentSize, end]
+     */
+    private Segment lease(String key) {
+        Long end = stringRedisTemplate.opsForValue().increment(key, segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("租用号段失败: " + key);
+        }
+        return new Segment(end - segmentSize, end);
+    }
+
+    private static class Segment {
+        private final long end;
+        private final AtomicLong cursor;
+
+        Segment(long start, long end) {
+            this.end = end;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    private class SegmentBuffer {
+        private final String key;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        SegmentBuffer(String key) {
+            this.key = key;
+        }
+
+        synchronized void prefetch() {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(key), prefetchExecutor);
+            }
+        }
+
+        /**
+         * 当前号段用完时切换到预取好的号段，没有预取或预取失败就同步租用；
+         * 只有第一个发现用完的线程负责切换，其余线程回到循环里用新号段
+         */
+        synchronized void switchSegment(Segment exhausted) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.error("预取号段失败, 改为同步租用: {}", key, e);
+                }
+                next = null;
+            }
+            current = segment != null ? segment : lease(key);
+        }
+    }
+
+    private static class CachedDay {
+        private final long day;
+        private final String date;
+
+        CachedDay(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package com.djdp.utils;
+
+import cn.hutool.core.io.FileUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scripting.support.ResourceScriptSource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/06/11:05
+ * Version: 1.0
+ * Description:lua脚本注册中心
+ * 启动时扫描classpath根目录下所有*.lua，逐个SCRIPT LOAD到Redis，之后统一按SHA执行（EVALSHA）。
+ * Redis重启或SCRIPT FLUSH后会返回NOSCRIPT，RedisTemplate会自动退回EVAL把脚本重新带上去，调用方无感知。
+ * 每个脚本的调用次数和耗时记录在指标 redis.script{script=文件名} 里，可以从 /actuator/metrics 查看。
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    private static final String SCRIPT_LOCATION = "classpath*:*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 脚本名（不带.lua的文件名） -> 脚本
+     */
+    private final Map<String, ScriptEntry> scripts = new ConcurrentHashMap<>();
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        Resource[] resources = new PathMatchingResourcePatternResolver().getResources(SCRIPT_LOCATION);
+        for (Resource resource : resources) {
+            String name = FileUtil.mainName(resource.getFilename());
+            DefaultRedisScript<Object> script = new DefaultRedisScript<>();
+            script.setScriptSource(new ResourceScriptSource(resource));
+            scripts.put(name, new ScriptEntry(script, Timer.builder("redis.script")
+                    .description("lua脚本执行耗时")
+                    .tag("script", name)
+                    .register(meterRegistry)));
+        }
+        loadAll();
+    }
+
+    /**
+     * 把所有脚本预加载到Redis的脚本缓存 SCRIPT LOAD
+     */
+    public void loadAll() {
+        for (Map.Entry<String, ScriptEntry> entry : scripts.entrySet()) {
+            byte[] body = entry.getValue().script.getScriptAsString().getBytes(StandardCharsets.UTF_8);
+            try {
+                String sha = stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.scriptLoad(body));
+                log.debug("lua脚本已加载: {} -> {}", entry.getKey(), sha);
+            } catch (Exception e) {
+                // 预加载失败不影响启动，首次执行时会走EVAL
+                log.error("lua脚本预加载失败: {}", entry.getKey(), e);
+            }
+        }
+    }
+
+    /**
+     * 执行返回整数的脚本
+     */
+    public Long execute(String name, List<String> keys, Object... args) {
+        return execute(name, Long.class, keys, args);
+    }
+
+    /**
+     * 执行脚本，resultType决定返回值的解析方式：Long对应整数，List对应数组，String对应状态/字符串
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        ScriptEntry entry = scripts.get(name);
+        if (entry == null) {
+            throw new IllegalArgumentException("lua脚本不存在: " + name);
+        }
+        DefaultRedisScript<T> script = entry.typed(resultType);
+        return entry.timer.record(() -> stringRedisTemplate.execute(script, keys, args));
+    }
+
+    private static class ScriptEntry {
+        private final DefaultRedisScript<Object> script;
+        private final Timer timer;
+        /**
+         * 同一个脚本按不同返回值类型执行时各自的实例，SHA都相同
+         */
+        private final Map<Class<?>, DefaultRedisScript<?>> typedScripts = new ConcurrentHashMap<>();
+
+        ScriptEntry(DefaultRedisScript<Object> script, Timer timer) {
+            this.script = script;
+            this.timer = timer;
+        }
+
+        @SuppressWarnings("unchecked")
+        <T> DefaultRedisScript<T> typed(Class<T> resultType) {
+            return (DefaultRedisScript<T>) typedScripts.computeIfAbsent(resultType,
+                    type -> new DefaultRedisScript<>(script.getScriptAsString(), resultType));
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.djdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.djdp.utils.RedisConstants.SECKILL_BUYER_KEY;
+import static com.djdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.djdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.djdp.utils.RedisConstants.SECKILL_WINDOW_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/04/16:20
+ * Version: 1.0
+ * Description:秒杀相关key的拼接
+ * 普通模式：后缀为 {voucherId}，如 seckill:stock:{voucherId}
+ * 分段模式：库存拆成多个分段，后缀为 {voucherId:bucket}
+ * 花括号是Redis Cluster的hash tag，保证同一分段的库存、订单、时间窗口、最近买家标记落在同一个slot，
+ * lua脚本只操作一个分段的这些key
+ */
+public class SeckillKeys {
+
+    public static String suffix(Long voucherId, int bucket, int segments) {
+        if (segments <= 1) {
+            return "{" + voucherId + "}";
+        }
+        return "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public static String stockKey(Long voucherId, int bucket, int segments) {
+        return SECKILL_STOCK_KEY + suffix(voucherId, bucket, segments);
+    }
+
+    public static String orderKey(Long voucherId, int bucket, int segments) {
+        return SECKILL_ORDER_KEY + suffix(voucherId, bucket, segments);
+    }
+
+    public static String windowKey(Long voucherId, int bucket, int segments) {
+        return SECKILL_WINDOW_KEY + suffix(voucherId, bucket, segments);
+    }
+
+    /**
+     * 布隆过滤器去重时最近买家的精确标记
+     */
+    public static String buyerKey(Long voucherId, int bucket, int segments, Long userId) {
+        return SECKILL_BUYER_KEY + suffix(voucherId, bucket, segments) + ":" + userId;
+    }
+
+    /**
+     * 分段的库存、订单、时间窗口key，seckill.lua和seckillcancel.lua的KEYS前三个
+     */
+    public static List<String> bucketKeys(Long voucherId, int bucket, int segments) {
+        List<String> keys = new ArrayList<>(4);
+        keys.add(stockKey(voucherId, bucket, segments));
+        keys.add(orderKey(voucherId, bucket, segments));
+        keys.add(windowKey(voucherId, bucket, segments));
+        return keys;
+    }
+}
@@ -0,0 +1,91 @@
+package com.djdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.util.Arrays;
+
+import static com.djdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/07/09:15
+ * Version: 1.0
+ * Description:秒杀接口的令牌桶限流
+ * 在生成订单id和执行seckill.lua之前调用ratelimit.lua，同一用户对同一张券、以及同一张券的全部请求各有一个桶，
+ * 被限流的请求不会消耗订单id，也不会再走一次秒杀脚本。
+ */
+@Component
+public class SeckillRateLimiter {
+
+    private final RedisScriptRegistry scriptRegistry;
+
+    private final Counter rejected;
+
+    @Value("${seckill.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 单个用户每张券每秒补充的令牌数、桶容量，速率为0表示不限制单个用户
+     */
+    @Value("${seckill.rate-limit.user-rate:1}")
+    private double userRate;
+    @Value("${seckill.rate-limit.user-burst:3}")
+    private long userBurst;
+
+    /**
+     * 每张券全局每秒补充的令牌数、桶容量，速率为0表示不做全局限制
+     */
+    @Value("${seckill.rate-limit.voucher-rate:2000}")
+    private double voucherRate;
+    @Value("${seckill.rate-limit.voucher-burst:4000}")
+    private long voucherBurst;
+
+    public SeckillRateLimiter(RedisScriptRegistry scriptRegistry, MeterRegistry meterRegistry) {
+        this.scriptRegistry = scriptRegistry;
+        this.rejected = Counter.builder("seckill.ratelimit.rejected")
+                .description("被限流的秒杀请求数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 速率不能为负；启用的桶容量至少为1，否则一个令牌都拿不到
+     */
+    @PostConstruct
+    private void checkConfig() {
+        checkBucket("user", userRate, userBurst);
+        checkBucket("voucher", voucherRate, voucherBurst);
+    }
+
+    private static void checkBucket(String name, double rate, long burst) {
+        if (rate < 0 || Double.isNaN(rate) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("seckill.rate-limit." + name + "-rate 不合法: " + rate);
+        }
+        if (rate > 0 && burst < 1) {
+            throw new IllegalArgumentException("seckill.rate-limit." + name + "-burst 不能小于1: " + burst);
+        }
+    }
+
+    /**
+     * 尝试获取一个令牌
+     * @return true 放行 false 被限流
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (!enabled || (userRate == 0 && voucherRate == 0)) {
+            return true;
+        }
+        Long result = scriptRegistry.execute("ratelimit",
+                Arrays.asList(SECKILL_LIMIT_KEY + voucherId + ":" + userId, SECKILL_LIMIT_KEY + voucherId),
+                String.valueOf(userRate), String.valueOf(userBurst),
+                String.valueOf(voucherRate), String.valueOf(voucherBurst));
+        if (result != null && result == 1) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+}
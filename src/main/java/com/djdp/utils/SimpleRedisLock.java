@@ -1,9 +1,7 @@
 package com.djdp.utils;
 
 import cn.hutool.core.lang.UUID;
-import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 import java.util.Collections;
 import java.util.concurrent.TimeUnit;
@@ -22,22 +20,15 @@ public class SimpleRedisLock implements ILock{
 
     private String name;
     private StringRedisTemplate stringRedisTemplate;
+    private RedisScriptRegistry scriptRegistry;
     private static final String KEY_PREFIX ="lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString(true)+"-";
 
 
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
-
-
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
     }
 
     @Override
@@ -53,9 +44,9 @@ public class SimpleRedisLock implements ILock{
 
     @Override
     public void unLock() {
-        //调用lua脚本
-        stringRedisTemplate.execute(
-                UNLOCK_SCRIPT,
+        //调用lua脚本 unlock.lua
+        scriptRegistry.execute(
+                "unlock",
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId());
     }
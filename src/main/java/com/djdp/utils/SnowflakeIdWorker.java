@@ -0,0 +1,167 @@
+package com.djdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.djdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.djdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/12/10:30
+ * Version: 1.0
+ * Description:本地雪花算法id生成器（id.mode=snowflake）
+ * 位布局：符号位0 | 31位秒数（和RedisIdWorker同一个BEGIN_TIMESTAMP、同一个口径） | 10位worker id | 22位序列号
+ * worker id启动时从Redis租用（id:worker:n，带有效期），定时心跳续期；发号完全在本地，一次CAS，不访问网络。
+ * 时钟回拨：秒数和序列号打包在一个AtomicLong里，当前秒数小于已用到的秒数时沿用已用到的秒数继续递增，
+ * 一秒内序列号用完就借用下一秒，保证单调不重复；心跳时把已用到的秒数写回Redis，下一个租到同一worker id的节点从这之后开始。
+ * 租约续期失败（Redis不可用超过有效期）后拒绝发号，不会和接手同一worker id的节点重复。
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(name = "id.mode", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IdGenerator {
+
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = 22;
+    private static final int TIMESTAMP_SHIFT = WORKER_BITS + SEQUENCE_BITS;
+    private static final long MAX_WORKER = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final RedisScriptRegistry scriptRegistry;
+
+    /**
+     * 租约持有者
+     */
+    private final String owner = NodeHolder.getNodeId();
+
+    /**
+     * 租约有效期（毫秒）
+     */
+    @Value("${id.snowflake.lease-ttl:30000}")
+    private long leaseTtl;
+
+    /**
+     * 时钟回拨超过该秒数时打印告警
+     */
+    @Value("${id.snowflake.backward-warn:2}")
+    private long backwardWarn;
+
+    private volatile long workerId;
+    private volatile long leaseExpireAt;
+
+    /**
+     * 已用到的秒数 << 22 | 该秒内的序列号
+     */
+    private final AtomicLong state = new AtomicLong();
+
+    public SnowflakeIdWorker(RedisScriptRegistry scriptRegistry) {
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    @PostConstruct
+    private void init() {
+        acquire();
+    }
+
+    /**
+     * @param keyPrefix 雪花id全局唯一，不区分前缀
+     */
+    @Override
+    public long nextId(String keyPrefix) {
+        if (System.currentTimeMillis() > leaseExpireAt) {
+            throw new IllegalStateException("worker id租约已失效, workerId=" + workerId);
+        }
+        long now = IdGenerator.nowSecond();
+        while (true) {
+            long current = state.get();
+            long lastSecond = current >>> SEQUENCE_BITS;
+            long next;
+            if (now > lastSecond) {
+                next = now << SEQUENCE_BITS;
+            } else {
+                if (lastSecond - now > backwardWarn) {
+                    log.warn("时钟回拨或序列号借用过多, 当前秒={}, 已用到={}", now, lastSecond);
+                }
+                //同一秒或时钟回拨：沿用已用到的秒数，序列号用完就借下一秒
+                next = (current & SEQUENCE_MASK) < SEQUENCE_MASK ? current + 1 : (lastSecond + 1) << SEQUENCE_BITS;
+            }
+            if (state.compareAndSet(current, next)) {
+                return ((next >>> SEQUENCE_BITS) - BEGIN_TIMESTAMP) << TIMESTAMP_SHIFT
+                        | (workerId << SEQUENCE_BITS)
+                        | (next & SEQUENCE_MASK);
+            }
+        }
+    }
+
+    /**
+     * 租用worker id，并从该worker id上次用到的秒数之后开始发号
+     */
+    private void acquire() {
+        long start = System.currentTimeMillis();
+        List<?> result = scriptRegistry.execute("workerlease", List.class,
+                Collections.singletonList(ID_WORKER_LAST_KEY),
+                owner, String.valueOf(leaseTtl), String.valueOf(MAX_WORKER));
+        long leased = ((Number) result.get(0)).longValue();
+        if (leased == 0) {
+            throw new IllegalStateException("没有空闲的worker id");
+        }
+        long lastSecond = ((Number) result.get(1)).longValue();
+        state.accumulateAndGet((lastSecond + 1) << SEQUENCE_BITS, Math::max);
+        workerId = leased;
+        leaseExpireAt = start + leaseTtl;
+        log.info("已租用worker id: {}, 上次用到的秒数: {}", leased, lastSecond);
+    }
+
+    /**
+     * 心跳续期，续期失败说明租约已被别人拿走，重新租一个
+     */
+    @Scheduled(fixedDelayString = "${id.snowflake.heartbeat:10000}")
+    public void heartbeat() {
+        long start = System.currentTimeMillis();
+        try {
+            if (renew()) {
+                leaseExpireAt = start + leaseTtl;
+                return;
+            }
+            log.error("worker id租约已丢失, 重新租用, workerId={}", workerId);
+            acquire();
+        } catch (Exception e) {
+            log.error("worker id续期失败, workerId={}", workerId, e);
+        }
+    }
+
+    private boolean renew() {
+        Long renewed = scriptRegistry.execute("workerrenew",
+                Arrays.asList(ID_WORKER_KEY + workerId, ID_WORKER_LAST_KEY),
+                owner, String.valueOf(leaseTtl), String.valueOf(workerId),
+                String.valueOf(state.get() >>> SEQUENCE_BITS));
+        return renewed != null && renewed == 1;
+    }
+
+    /**
+     * 停机时记下已用到的秒数并释放worker id
+     */
+    @PreDestroy
+    private void release() {
+        try {
+            if (renew()) {
+                scriptRegistry.execute("unlock", Collections.singletonList(ID_WORKER_KEY + workerId), owner);
+            }
+        } catch (Exception e) {
+            log.error("释放worker id失败, workerId={}", workerId, e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.djdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.djdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/03/09:40
+ * Version: 1.0
+ * Description:秒杀券售罄的本地标记
+ * 某个节点执行seckill.lua拿到"库存不足"后在本地打上标记，并通过Redis发布订阅广播给其他节点，
+ * 之后的请求在本地就能直接拒绝，不用再走一次Redis。
+ * 标记带有效期：发布订阅不保证送达，补库存的消息万一丢了，过期后也会回到Redis重新确认。
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESTOCK = "restock:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 优惠券id -> 标记售罄的时间
+     */
+    private final Map<Long, Long> soldOutTime = new ConcurrentHashMap<>();
+
+    /**
+     * 售罄标记的有效期（毫秒）
+     */
+    @Value("${seckill.sold-out-ttl:10000}")
+    private long soldOutTtl;
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markTime = soldOutTime.get(voucherId);
+        if (markTime == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markTime > soldOutTtl) {
+            soldOutTime.remove(voucherId, markTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并广播，本地已经有标记时不重复广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOutTime.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    /**
+     * 补充库存后清除所有节点的售罄标记
+     */
+    public void restock(Long voucherId) {
+        soldOutTime.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCK + voucherId);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                soldOutTime.putIfAbsent(Long.valueOf(StrUtil.removePrefix(body, SOLD_OUT)), System.currentTimeMillis());
+            } else if (body.startsWith(RESTOCK)) {
+                soldOutTime.remove(Long.valueOf(StrUtil.removePrefix(body, RESTOCK)));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法识别的售罄消息: {}", body);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.djdp.utils;
+
+import com.djdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.DefaultTypedTuple;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.djdp.utils.RedisConstants.ORDER_UNPAID_KEY;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/13/10:00
+ * Version: 1.0
+ * Description:未支付订单的延迟队列
+ * 一个ZSET，成员是订单id，score是支付截止时间戳。订单落库提交后入队，
+ * 超时取消任务按批领取到期的订单（delaypoll.lua，带租约），处理完再出队，
+ * 不需要每个订单一个定时器，也不需要扫描订单表。
+ */
+@Slf4j
+@Component
+public class UnpaidOrderQueue {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final RedisScriptRegistry scriptRegistry;
+
+    /**
+     * 支付超时时间（毫秒），超过后未支付的订单被取消
+     */
+    @Value("${seckill.pay.timeout:900000}")
+    private long payTimeout;
+
+    /**
+     * 领取后的租约时长（毫秒），领取的节点在这段时间内没处理完，订单会被重新领取
+     */
+    @Value("${seckill.pay.lease:60000}")
+    private long lease;
+
+    public UnpaidOrderQueue(StringRedisTemplate stringRedisTemplate, RedisScriptRegistry scriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * 订单入队。在事务中调用时等提交后再写，回滚的订单不入队
+     */
+    public void schedule(Collection<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            add(voucherOrders);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                add(voucherOrders);
+            }
+        });
+    }
+
+    private void add(Collection<VoucherOrder> voucherOrders) {
+        double deadline = System.currentTimeMillis() + payTimeout;
+        Set<ZSetOperations.TypedTuple<String>> tuples = voucherOrders.stream()
+                .map(voucherOrder -> new DefaultTypedTuple<>(voucherOrder.getId().toString(), deadline))
+                .collect(Collectors.toSet());
+        try {
+            stringRedisTemplate.opsForZSet().add(ORDER_UNPAID_KEY, tuples);
+        } catch (Exception e) {
+            //入队失败订单不会超时取消，只能等人工处理，不影响下单本身
+            log.error("未支付订单入队失败, orderIds={}", tuples.stream().map(ZSetOperations.TypedTuple::getValue)
+                    .collect(Collectors.toList()), e);
+        }
+    }
+
+    /**
+     * 领取一批已到期的订单id
+     */
+    public List<Long> poll(int batchSize) {
+        List<?> members = scriptRegistry.execute("delaypoll", List.class,
+                Collections.singletonList(ORDER_UNPAID_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(batchSize), String.valueOf(lease));
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        return members.stream().map(member -> Long.valueOf(member.toString())).collect(Collectors.toList());
+    }
+
+    /**
+     * 处理完的订单出队
+     */
+    public void remove(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(ORDER_UNPAID_KEY, orderIds.stream().map(String::valueOf).toArray());
+    }
+
+    public Long size() {
+        return stringRedisTemplate.opsForZSet().zCard(ORDER_UNPAID_KEY);
+    }
+}
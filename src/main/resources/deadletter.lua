@@ -0,0 +1,35 @@
+---
+--- 把多次处理失败的订单消息转入死信stream，并从原stream的pending-list中确认掉
+--- 三步放在一个脚本里保证原子性，多个节点同时处理同一条消息时只会转入一次
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 原stream  KEYS[2] 死信stream
+local sourceKey = KEYS[1]
+local deadLetterKey = KEYS[2]
+--1.2.消费者组
+local group = ARGV[1]
+--1.3.消息id
+local id = ARGV[2]
+--1.4.已投递次数
+local deliveries = ARGV[3]
+
+-- 2.脚本业务
+-- 2.1.消息已经不在pending-list中（已被其他节点处理或转移），直接返回0
+if (#redis.call('xpending', sourceKey, group, id, id, 1) == 0) then
+    return 0
+end
+-- 2.2.取出原消息内容，带上来源信息写入死信stream
+local entries = redis.call('xrange', sourceKey, id, id)
+if (#entries > 0) then
+    local fields = entries[1][2]
+    table.insert(fields, 'sourceStream')
+    table.insert(fields, sourceKey)
+    table.insert(fields, 'sourceId')
+    table.insert(fields, id)
+    table.insert(fields, 'deliveries')
+    table.insert(fields, deliveries)
+    redis.call('xadd', deadLetterKey, '*', unpack(fields))
+end
+-- 2.3.确认原消息 XACK
+redis.call('xack', sourceKey, group, id)
+return 1
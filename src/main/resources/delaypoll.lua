@@ -0,0 +1,21 @@
+---
+--- 从延迟队列(ZSET，score为到期时间戳)里领取一批到期的成员
+--- 领取不是删除，而是把score推后一个租约时间：处理完由调用方ZREM，
+--- 处理中途节点宕机的成员租约到期后会被重新领取；多个节点同时领取也不会拿到同一个成员
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 延迟队列
+local queueKey = KEYS[1]
+--1.2.当前时间戳
+local now = tonumber(ARGV[1])
+--1.3.每次最多领取的数量
+local batchSize = tonumber(ARGV[2])
+--1.4.租约时长，单位毫秒
+local lease = tonumber(ARGV[3])
+
+-- 2.脚本业务
+local members = redis.call('zrangebyscore', queueKey, '-inf', now, 'LIMIT', 0, batchSize)
+for _, member in ipairs(members) do
+    redis.call('zadd', queueKey, now + lease, member)
+end
+return members
@@ -0,0 +1,28 @@
+---
+--- id布隆过滤器：新增数据后把id加进去
+--- 正在重建时同时写入新的位数组，重建期间插入的id不会在切换后丢失
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 过滤器的元数据hash{key, bits, hashes, building, buildingBits, buildingHashes}
+local metaKey = KEYS[1]
+--1.2.ARGV[1..n] 新增的id
+
+-- 2.脚本业务
+local meta = redis.call('hmget', metaKey, 'key', 'bits', 'hashes', 'building', 'buildingBits', 'buildingHashes')
+local function add(key, bits, hashes)
+    for _, id in ipairs(ARGV) do
+        local digest = redis.sha1hex(id)
+        local h1 = tonumber(string.sub(digest, 1, 8), 16)
+        local h2 = tonumber(string.sub(digest, 9, 16), 16)
+        for j = 0, hashes - 1 do
+            redis.call('setbit', key, string.format('%d', (h1 + j * h2) % bits), 1)
+        end
+    end
+end
+if (meta[1]) then
+    add(meta[1], tonumber(meta[2]), tonumber(meta[3]))
+end
+if (meta[4]) then
+    add(meta[4], tonumber(meta[5]), tonumber(meta[6]))
+end
+return 1
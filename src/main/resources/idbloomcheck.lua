@@ -0,0 +1,33 @@
+---
+--- id布隆过滤器：批量判断id是否可能存在，偏移量算法和BuyerBloomFilter一致
+--- 返回值：和ARGV一一对应的数组，1 可能存在 0 一定不存在；过滤器还没建好时全部返回1
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 过滤器的元数据hash{key, bits, hashes}，key是当前生效的位数组
+local metaKey = KEYS[1]
+--1.2.ARGV[1..n] 要判断的id
+
+-- 2.脚本业务
+local meta = redis.call('hmget', metaKey, 'key', 'bits', 'hashes')
+local result = {}
+if (not meta[1]) then
+    for i = 1, #ARGV do
+        result[i] = 1
+    end
+    return result
+end
+local bits = tonumber(meta[2])
+local hashes = tonumber(meta[3])
+for i, id in ipairs(ARGV) do
+    local digest = redis.sha1hex(id)
+    local h1 = tonumber(string.sub(digest, 1, 8), 16)
+    local h2 = tonumber(string.sub(digest, 9, 16), 16)
+    result[i] = 1
+    for j = 0, hashes - 1 do
+        if (redis.call('getbit', meta[1], string.format('%d', (h1 + j * h2) % bits)) == 0) then
+            result[i] = 0
+            break
+        end
+    end
+end
+return result
@@ -0,0 +1,24 @@
+---
+--- id布隆过滤器：重建完成后切换到新的位数组并删除旧的
+--- 返回值：1 切换成功 0 重建期间被另一次重建取代，本次作废
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 过滤器的元数据hash
+local metaKey = KEYS[1]
+--1.2.本次重建写入的位数组key
+local building = ARGV[1]
+--1.3.重建完成的时间戳（毫秒）
+local builtAt = ARGV[2]
+
+-- 2.脚本业务
+local meta = redis.call('hmget', metaKey, 'key', 'building', 'buildingBits', 'buildingHashes')
+if (meta[2] ~= building) then
+    redis.call('del', building)
+    return 0
+end
+redis.call('hmset', metaKey, 'key', building, 'bits', meta[3], 'hashes', meta[4], 'builtAt', builtAt)
+redis.call('hdel', metaKey, 'building', 'buildingBits', 'buildingHashes')
+if (meta[1] and meta[1] ~= building) then
+    redis.call('del', meta[1])
+end
+return 1
@@ -0,0 +1,62 @@
+---
+--- 秒杀接口的令牌桶限流：每个用户每张券一个桶，每张券一个全局桶
+--- 两个桶在一个脚本里判断和扣减，要么都拿到令牌，要么都不扣
+--- 桶的结构 hash{tokens 剩余令牌, ts 上次补充的毫秒时间}
+--- 返回值：1 放行 0 限流
+---
+-- 脚本里读了TIME之后还要写数据，按效果复制
+redis.replicate_commands()
+
+-- 1.参数列表：
+--1.1.KEYS[1] 用户桶  KEYS[2] 全局桶
+--1.2.用户桶每秒补充的令牌数、容量，速率为0表示不限制
+local userRate = tonumber(ARGV[1])
+local userBurst = tonumber(ARGV[2])
+--1.3.全局桶每秒补充的令牌数、容量，速率为0表示不限制
+local voucherRate = tonumber(ARGV[3])
+local voucherBurst = tonumber(ARGV[4])
+
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+
+-- 2.按流逝的时间补充令牌，不超过容量
+local function refill(key, rate, burst)
+    local bucket = redis.call('hmget', key, 'tokens', 'ts')
+    local tokens = tonumber(bucket[1])
+    local ts = tonumber(bucket[2])
+    if (not tokens) then
+        return burst
+    end
+    return math.min(burst, tokens + math.max(0, now - ts) * rate / 1000)
+end
+
+local function save(key, tokens, rate, burst)
+    redis.call('hset', key, 'tokens', tokens, 'ts', now)
+    -- 桶补满之后就没有保存的必要了，过期时间取补满所需时间再多1秒
+    redis.call('pexpire', key, math.ceil(burst / rate * 1000) + 1000)
+end
+
+-- 3.判断两个桶是否都有令牌，速率为0的桶不读不写（补充和过期时间都要除以速率）
+local userTokens
+if (userRate > 0) then
+    userTokens = refill(KEYS[1], userRate, userBurst)
+    if (userTokens < 1) then
+        return 0
+    end
+end
+local voucherTokens
+if (voucherRate > 0) then
+    voucherTokens = refill(KEYS[2], voucherRate, voucherBurst)
+    if (voucherTokens < 1) then
+        return 0
+    end
+end
+
+-- 4.扣减令牌
+if (userRate > 0) then
+    save(KEYS[1], userTokens - 1, userRate, userBurst)
+end
+if (voucherRate > 0) then
+    save(KEYS[2], voucherTokens - 1, voucherRate, voucherBurst)
+end
+return 1
@@ -3,41 +3,139 @@
 --- Created by DAIJUNQIANG.
 --- DateTime: 2023/2/12 15:47
 --- lua脚本 进行redis缓存热点数据（优惠券秒杀）的操作 使用lua脚本可以保证原子性
+--- 脚本只在用户首选分段（userId % 分段数）上执行，用到的key都通过KEYS传入、带同一个hash tag {优惠券id} 或 {优惠券id:分段号}，
+--- Redis Cluster下落在同一个slot；订单消息和结果记录不在这个slot，由调用方在脚本成功后写入
+--- 返回值：{code, seq}，code：0 成功 1 库存不足 2 重复下单 3 秒杀尚未开始 4 秒杀已经结束 5 布隆过滤器命中，需要数据库核对
+---        6 已达到每人限购数量 7 首选分段库存不足，已为用户占位，由调用方去其他分段扣库存
 ---
+-- 脚本里读了TIME之后还要写数据，按效果复制（Redis 5+默认如此，低版本需要显式开启）
+redis.replicate_commands()
+
 -- 1.参数列表：
---1.1.优惠券id
-local voucherId = ARGV[1]
+--1.1.用户id
+local userId = ARGV[1]
 
---1.2.用户id
-local userId = ARGV[2]
+--1.2.是否跳过去重判断：布隆过滤器命中后，调用方在数据库核对过用户确实没买过，再传'1'重新执行
+local skipDedupe = ARGV[2] == '1'
 
---1.3.订单id
-local orderId = ARGV[3]
+--1.3.首选分段库存不足时是否先占位：分段模式传'1'，调用方再去其他分段扣库存，都没有库存时释放占位
+local reserve = ARGV[3] == '1'
 
---2.数据Key
+--2.数据Key，都在首选分段
 --2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
---2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+local stockKey = KEYS[1]
+--2.2 订单key（已购用户）
+local orderKey = KEYS[2]
+--2.3 秒杀时间窗口key hash{begin, end} 毫秒时间戳，每个分段各有一份
+--    同一个hash里还有去重结构 dedupe(0 SET 1 位图 2 布隆过滤器 3 限购计数)、布隆过滤器的 bloomBits/bloomHashes/bloomRecentTtl、
+--    每人限购数量 quota、非SET结构的已售份数 buyers（按首选分段计数）
+local windowKey = KEYS[3]
+--2.4 布隆过滤器模式下最近买家的精确标记，覆盖订单还没落库、数据库核对不到的这段时间
+local recentKey = KEYS[4]
 
 
 -- 3.脚本业务
--- 3.1.判断库存是否充足
-if (tonumber(redis.call('get',stockKey)) <= 0) then
-    --库存不足返回1
-    return 1
+-- 3.0.判断秒杀时间窗口，没有写入窗口的券不做限制
+local meta = redis.call('hmget', windowKey, 'begin', 'end', 'dedupe', 'bloomBits', 'bloomHashes', 'bloomRecentTtl', 'quota')
+if (meta[1]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if (now < tonumber(meta[1])) then
+        --秒杀尚未开始返回3
+        return { 3 }
+    end
+    if (meta[2] and now > tonumber(meta[2])) then
+        --秒杀已经结束返回4
+        return { 4 }
+    end
 end
--- 3.2.判断用户是否已经下了订单
-if(redis.call('sismember',orderKey,userId)== 1) then
-    --3.3.用户重复下单 返回2
-    return 2
+-- 3.1.判断用户是否已经下了订单（先于库存判断）：已购记录只在首选分段，不管最终在哪个分段扣到库存，
+--     重复请求都会被拦下，取消订单把库存补回已经卖空的分段也不影响
+local dedupe = tonumber(meta[3]) or 0
+local offsets
+--用户在这张券上的第几份，限购1份时固定为1
+local seq = 1
+local mask
+if (dedupe == 3) then
+    --限购计数：HASH 用户id -> 已占用份数的位掩码，取最小的空位作为这一份的序号
+    --订单表唯一索引(voucher_id, user_id, seq, active)按序号防重，落库时不需要count
+    mask = tonumber(redis.call('hget', orderKey, userId)) or 0
+    seq = nil
+    for i = 0, tonumber(meta[7]) - 1 do
+        if (bit.band(mask, bit.lshift(1, i)) == 0) then
+            seq = i + 1
+            break
+        end
+    end
+    if (not seq) then
+        --已达到每人限购数量 返回6
+        return { 6 }
+    end
+elseif (dedupe == 0) then
+    if(redis.call('sismember',orderKey,userId)== 1) then
+        --3.2.用户重复下单 返回2
+        return { 2 }
+    end
+else
+    if (dedupe == 1) then
+        --位图：用户id就是偏移量
+        if (tonumber(userId) > 4294967295) then
+            return redis.error_reply('userId ' .. userId .. ' out of bitmap range')
+        end
+        offsets = { userId }
+    else
+        --布隆过滤器：双重哈希，算法和BuyerBloomFilter一致
+        local bits = tonumber(meta[4])
+        local digest = redis.sha1hex(userId)
+        local h1 = tonumber(string.sub(digest, 1, 8), 16)
+        local h2 = tonumber(string.sub(digest, 9, 16), 16)
+        offsets = {}
+        for i = 0, tonumber(meta[5]) - 1 do
+            offsets[i + 1] = string.format('%d', (h1 + i * h2) % bits)
+        end
+    end
+    local hit = true
+    for _, offset in ipairs(offsets) do
+        if (redis.call('getbit', orderKey, offset) == 0) then
+            hit = false
+            break
+        end
+    end
+    if (hit and not skipDedupe) then
+        --位图命中、或最近刚买过的一定是重复下单；其余布隆过滤器命中可能是误判，返回5交给调用方查订单表核对
+        if (dedupe == 1 or redis.call('exists', recentKey) == 1) then
+            return { 2 }
+        end
+        return { 5 }
+    end
+end
+-- 3.3.判断库存是否充足，key不存在按0处理
+local code = 0
+if ((tonumber(redis.call('get',stockKey)) or 0) <= 0) then
+    if (not reserve) then
+        --库存不足返回1
+        return { 1 }
+    end
+    --分段模式：先占位，其他分段扣库存成功后不用再回到这个slot
+    code = 7
+else
+    --3.4.扣库存 incrby stockKey -1
+    redis.call('incrby',stockKey,-1);
+end
+--3.5.下单（保存用户） sadd orderKey userId，位图/布隆过滤器置位，限购计数占用序号，非SET结构计数
+if (dedupe == 0) then
+    redis.call('sadd',orderKey,userId);
+elseif (dedupe == 3) then
+    redis.call('hset', orderKey, userId, bit.bor(mask, bit.lshift(1, seq - 1)))
+    redis.call('hincrby', windowKey, 'buyers', 1)
+else
+    for _, offset in ipairs(offsets) do
+        redis.call('setbit', orderKey, offset, 1)
+    end
+    redis.call('hincrby', windowKey, 'buyers', 1)
+    if (dedupe == 2) then
+        redis.call('set', recentKey, '1', 'EX', meta[6])
+    end
 end
 
---3.4.扣库存 incrby stockKey -1
-redis.call('incrby',stockKey,-1);
---3.5.下单（保存用户） sadd orderKey userId
-redis.call('sadd',orderKey,userId);
---3.6.发送消息到队列当中 XADD stream.orders * k1 v1 k2 v2 ...
-redis.call('xadd','stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId);
-
-return 0
\ No newline at end of file
+return { code, seq }
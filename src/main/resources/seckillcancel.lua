@@ -0,0 +1,72 @@
+---
+--- 取消订单后移除已购用户（限购时释放对应的份数）并把库存还回秒杀库存，一次处理同一个首选分段上的多个订单
+--- 用户可能在任意分段扣到库存，但去重/限购结构只记在首选分段（userId % 分段数），移除和还库存都在首选分段；
+--- 调用方按首选分段分组调用，用到的key都通过KEYS传入、带同一个hash tag，Redis Cluster下落在同一个slot
+--- 也用于释放秒杀时的占位（其他分段都没有库存）：这时没扣过库存，不还库存
+--- 返回值：实际移除的用户数
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 库存key  KEYS[2] 订单key（已购用户）  KEYS[3] 时间窗口key
+--    KEYS[4..n] 每个用户的最近买家标记key，和ARGV里的用户一一对应
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local windowKey = KEYS[3]
+--1.2.是否还库存：取消订单传'1'，释放占位传'0'
+local restock = ARGV[1] == '1'
+--1.3.ARGV[2..n] 用户id和份数序号，成对出现：userId1, seq1, userId2, seq2 ...
+
+-- 2.脚本业务
+local meta = redis.call('hmget', windowKey, 'dedupe', 'bloomBits', 'bloomHashes')
+local dedupe = tonumber(meta[1]) or 0
+local removedCount = 0
+for i = 2, #ARGV, 2 do
+    local userId = ARGV[i]
+    local seqBit = bit.lshift(1, (tonumber(ARGV[i + 1]) or 1) - 1)
+    local recentKey = KEYS[3 + i / 2]
+    --2.1.按去重结构移除用户
+    local removed
+    if (dedupe == 0) then
+        removed = redis.call('srem', orderKey, userId) == 1
+    elseif (dedupe == 3) then
+        --限购计数：释放这一份的序号，用户可以再买一份
+        local mask = tonumber(redis.call('hget', orderKey, userId)) or 0
+        removed = bit.band(mask, seqBit) ~= 0
+        if (removed) then
+            mask = bit.band(mask, bit.bnot(seqBit))
+            if (mask == 0) then
+                redis.call('hdel', orderKey, userId)
+            else
+                redis.call('hset', orderKey, userId, mask)
+            end
+        end
+    elseif (dedupe == 1) then
+        removed = redis.call('setbit', orderKey, userId, 0) == 1
+    else
+        --布隆过滤器的位是多个用户共用的，不能清零；用户再来抢时命中后查订单表，已取消的订单不算
+        local bits = tonumber(meta[2])
+        local digest = redis.sha1hex(userId)
+        local h1 = tonumber(string.sub(digest, 1, 8), 16)
+        local h2 = tonumber(string.sub(digest, 9, 16), 16)
+        removed = true
+        for k = 0, tonumber(meta[3]) - 1 do
+            if (redis.call('getbit', orderKey, string.format('%d', (h1 + k * h2) % bits)) == 0) then
+                removed = false
+                break
+            end
+        end
+        if (removed) then
+            redis.call('del', recentKey)
+        end
+    end
+    --2.2.还库存：补回首选分段即可，去重不看库存在哪个分段，补回已经卖空的分段也不会让买过的用户再买
+    if (removed) then
+        if (dedupe ~= 0) then
+            redis.call('hincrby', windowKey, 'buyers', -1)
+        end
+        if (restock) then
+            redis.call('incrby', stockKey, 1)
+        end
+        removedCount = removedCount + 1
+    end
+end
+return removedCount
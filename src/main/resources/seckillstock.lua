@@ -0,0 +1,10 @@
+---
+--- 分段模式下用户在首选分段占位后，到其他分段扣一份库存；只访问这一个分段的库存key
+--- KEYS[1] 分段的库存key
+--- 返回值：0 扣减成功 1 库存不足
+---
+if ((tonumber(redis.call('get', KEYS[1])) or 0) <= 0) then
+    return 1
+end
+redis.call('incrby', KEYS[1], -1)
+return 0
@@ -0,0 +1,22 @@
+---
+--- 租用一个空闲的worker id：从1开始依次尝试 SET id:worker:n owner NX PX ttl
+--- 0保留不用，避免和RedisIdWorker当天前4194304个序列号的低32位重合
+--- 返回值：{workerId, 该worker id上次用到的秒数}，没有空闲的返回 {0, 0}
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 各worker id上次用到的秒数 hash
+local lastKey = KEYS[1]
+--1.2.租约持有者（节点标识）
+local owner = ARGV[1]
+--1.3.租约有效期（毫秒）
+local ttl = ARGV[2]
+--1.4.worker id上限
+local maxWorker = tonumber(ARGV[3])
+
+-- 2.脚本业务
+for i = 1, maxWorker do
+    if (redis.call('set', 'id:worker:' .. i, owner, 'NX', 'PX', ttl)) then
+        return {i, tonumber(redis.call('hget', lastKey, tostring(i))) or 0}
+    end
+end
+return {0, 0}
@@ -0,0 +1,21 @@
+---
+--- worker id租约续期，同时记录该worker id已经用到的秒数，下一个租到它的节点从这之后开始发号
+--- 返回值：1 续期成功 0 租约已经不属于自己
+---
+-- 1.参数列表：
+--1.1.KEYS[1] 租约key id:worker:n  KEYS[2] 各worker id上次用到的秒数 hash
+local leaseKey = KEYS[1]
+local lastKey = KEYS[2]
+--1.2.租约持有者、有效期（毫秒）、worker id、已用到的秒数
+local owner = ARGV[1]
+local ttl = ARGV[2]
+local workerId = ARGV[3]
+local lastSecond = ARGV[4]
+
+-- 2.脚本业务
+if (redis.call('get', leaseKey) ~= owner) then
+    return 0
+end
+redis.call('pexpire', leaseKey, ttl)
+redis.call('hset', lastKey, workerId, lastSecond)
+return 1
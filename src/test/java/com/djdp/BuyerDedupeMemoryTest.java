@@ -0,0 +1,202 @@
+package com.djdp;
+
+import cn.hutool.core.collection.CollUtil;
+import com.djdp.dto.Result;
+import com.djdp.dto.SeckillStockSnapshot;
+import com.djdp.dto.UserDTO;
+import com.djdp.entity.Voucher;
+import com.djdp.enums.BuyerDedupeMode;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.service.IVoucherService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.BuyerBloomFilter;
+import com.djdp.utils.SeckillKeys;
+import com.djdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 已购用户去重结构的内存对比：同样的买家分别写入SET、位图、布隆过滤器，用 MEMORY USAGE 比较占用，
+ * 并统计布隆过滤器的实际误判率。买家数通过系统属性调整，例如
+ * mvn test -Dtest=BuyerDedupeMemoryTest -Dbenchmark.buyers=1000000
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class BuyerDedupeMemoryTest {
+
+    private static final int BUYERS = Integer.getInteger("benchmark.buyers", 200000);
+
+    /**
+     * 用户id从这里开始连续分配，和自增主键的用户表一致
+     */
+    private static final long USER_ID_BASE = 1_000_000L;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Value("${seckill.dedupe.bloom-fpp:0.001}")
+    private double bloomFpp;
+
+    @Test
+    void testMemoryUsage() {
+        List<Long> buyers = LongStream.range(USER_ID_BASE, USER_ID_BASE + BUYERS).boxed().collect(Collectors.toList());
+        long bits = BuyerBloomFilter.optimalBits(BUYERS, bloomFpp);
+        int hashes = BuyerBloomFilter.optimalHashes(BUYERS, bits);
+        String setKey = "benchmark:dedupe:set";
+        String bitmapKey = "benchmark:dedupe:bitmap";
+        String bloomKey = "benchmark:dedupe:bloom";
+        stringRedisTemplate.delete(CollUtil.newArrayList(setKey, bitmapKey, bloomKey));
+
+        for (List<Long> part : CollUtil.split(buyers, 1000)) {
+            stringRedisTemplate.opsForSet().add(setKey, part.stream().map(String::valueOf).toArray(String[]::new));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Long userId : part) {
+                    connection.setBit(bytes(bitmapKey), userId, true);
+                    for (long offset : BuyerBloomFilter.offsets(userId, bits, hashes)) {
+                        connection.setBit(bytes(bloomKey), offset, true);
+                    }
+                }
+                return null;
+            });
+        }
+        long setBytes = memoryUsage(setKey);
+        long bitmapBytes = memoryUsage(bitmapKey);
+        long bloomBytes = memoryUsage(bloomKey);
+
+        //没买过的用户里有多少被布隆过滤器判为已购，整个位数组取回本地判断
+        byte[] bloom = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(bytes(bloomKey)));
+        int probes = Math.max(BUYERS, 100000);
+        long falsePositives = LongStream.range(USER_ID_BASE + BUYERS, USER_ID_BASE + BUYERS + probes)
+                .filter(userId -> LongStream.of(BuyerBloomFilter.offsets(userId, bits, hashes)).allMatch(offset -> isSet(bloom, offset)))
+                .count();
+        double actualFpp = (double) falsePositives / probes;
+
+        System.out.println("========== 已购用户去重结构内存对比 ==========");
+        System.out.printf("买家数=%d 用户id=[%d, %d)%n", BUYERS, USER_ID_BASE, USER_ID_BASE + BUYERS);
+        System.out.printf("%-8s %14s %10s%n", "结构", "内存(bytes)", "相对SET");
+        System.out.printf("%-8s %14d %9.1f%%%n", "SET", setBytes, 100.0);
+        System.out.printf("%-8s %14d %9.1f%%%n", "位图", bitmapBytes, 100.0 * bitmapBytes / setBytes);
+        System.out.printf("%-8s %14d %9.1f%%%n", "布隆", bloomBytes, 100.0 * bloomBytes / setBytes);
+        System.out.printf("布隆过滤器 bits=%d hashes=%d 期望误判率=%.4f%% 实际误判率=%.4f%%%n",
+                bits, hashes, bloomFpp * 100, actualFpp * 100);
+
+        assertEquals(BUYERS, stringRedisTemplate.opsForSet().size(setKey));
+        assertTrue(bitmapBytes < setBytes, "位图没有比SET省内存");
+        assertTrue(bloomBytes < setBytes, "布隆过滤器没有比SET省内存");
+        assertTrue(actualFpp <= bloomFpp * 3, "布隆过滤器误判率过高: " + actualFpp);
+        stringRedisTemplate.delete(CollUtil.newArrayList(setKey, bitmapKey, bloomKey));
+    }
+
+    /**
+     * seckill.lua和BuyerBloomFilter算出的偏移量必须一致，重复请求要被拦下，已购人数由脚本计数
+     */
+    @Test
+    void testBloomDedupeInScript() {
+        int stock = 50;
+        Long voucherId = createVoucher(stock + 10, BuyerDedupeMode.BLOOM);
+        for (long userId = USER_ID_BASE; userId < USER_ID_BASE + stock; userId++) {
+            assertTrue(seckill(voucherId, userId).getSuccess());
+            assertEquals("不能重复下单", seckill(voucherId, userId).getErrorMsg());
+        }
+        String orderKey = SeckillKeys.orderKey(voucherId, 0, 1);
+        List<Object> meta = stringRedisTemplate.opsForHash().multiGet(SeckillKeys.windowKey(voucherId, 0, 1),
+                CollUtil.newArrayList("bloomBits", "bloomHashes"));
+        long bits = Long.parseLong(meta.get(0).toString());
+        int hashes = Integer.parseInt(meta.get(1).toString());
+        for (long userId = USER_ID_BASE; userId < USER_ID_BASE + stock; userId++) {
+            assertTrue(allBitsSet(orderKey, BuyerBloomFilter.offsets(userId, bits, hashes)), "脚本和Java的偏移量不一致");
+        }
+        SeckillStockSnapshot snapshot = seckillVoucherService.getRedisStockSnapshot(voucherId);
+        assertEquals(stock, snapshot.getBuyers());
+        assertEquals(10, snapshot.getRemaining());
+    }
+
+    @Test
+    void testBitmapDedupeInScript() {
+        Long voucherId = createVoucher(10, BuyerDedupeMode.BITMAP);
+        assertTrue(seckill(voucherId, USER_ID_BASE).getSuccess());
+        assertEquals("不能重复下单", seckill(voucherId, USER_ID_BASE).getErrorMsg());
+        assertTrue(stringRedisTemplate.opsForValue().getBit(SeckillKeys.orderKey(voucherId, 0, 1), USER_ID_BASE));
+        assertEquals(1, seckillVoucherService.getRedisStockSnapshot(voucherId).getBuyers());
+    }
+
+    private Long createVoucher(int stock, BuyerDedupeMode dedupe) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("去重结构测试券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBuyerDedupe(dedupe.getCode());
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private Result seckill(Long voucherId, long userId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private boolean allBitsSet(String key, long[] offsets) {
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.getBit(bytes(key), offset);
+            }
+            return null;
+        });
+        return bits.stream().allMatch(Boolean.TRUE::equals);
+    }
+
+    /**
+     * Redis位图中偏移量0是第一个字节的最高位，超出字符串长度的位为0
+     */
+    private static boolean isSet(byte[] bitmap, long offset) {
+        int index = (int) (offset >>> 3);
+        return index < bitmap.length && (bitmap[index] & (0x80 >>> (offset & 7))) != 0;
+    }
+
+    private long memoryUsage(String key) {
+        Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.execute("MEMORY", bytes("USAGE"), bytes(key), bytes("SAMPLES"), bytes("0")));
+        return (Long) usage;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
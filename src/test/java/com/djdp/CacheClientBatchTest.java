@@ -0,0 +1,99 @@
+package com.djdp;
+
+import com.djdp.entity.Shop;
+import com.djdp.service.IShopService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.CacheClient;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.djdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.djdp.utils.RedisConstants.LOCK_CACHE_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * CacheClient批量查询：未命中的id只查一次数据库，写回后再查不访问数据库；不存在的id缓存空值；
+ * 逻辑过期的值先返回旧值，后台批量重建。key前缀不在本地缓存的配置里，每次都会走Redis
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class CacheClientBatchTest {
+
+    private static final long MISSING_ID = 99999L;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testBatchWithPassThrough() {
+        String prefix = "test:batch:pass:";
+        List<List<Long>> dbCalls = new CopyOnWriteArrayList<>();
+        List<Long> ids = Arrays.asList(3L, 1L, MISSING_ID, 1L, 2L);
+
+        Map<Long, Shop> first = cacheClient.queryBatchWithPassThrough(prefix, ids, Shop.class,
+                recording(dbCalls), Shop::getId, 10L, TimeUnit.MINUTES);
+        assertEquals(Arrays.asList(3L, 1L, 2L), new ArrayList<>(first.keySet()));
+        assertEquals(1, dbCalls.size(), "未命中的id应该只查一次数据库");
+        assertEquals(Arrays.asList(3L, 1L, MISSING_ID, 2L), dbCalls.get(0));
+        assertEquals("", stringRedisTemplate.opsForValue().get(prefix + MISSING_ID));
+
+        Map<Long, Shop> second = cacheClient.queryBatchWithPassThrough(prefix, ids, Shop.class,
+                recording(dbCalls), Shop::getId, 10L, TimeUnit.MINUTES);
+        assertEquals(1, dbCalls.size(), "全部命中缓存时不应该查数据库");
+        assertEquals(first, second);
+    }
+
+    @Test
+    void testBatchWithLogicalExpire() throws InterruptedException {
+        String prefix = "test:batch:logical:";
+        List<List<Long>> dbCalls = new CopyOnWriteArrayList<>();
+        Shop stale = shopService.getById(4L).setName("旧名字");
+        cacheClient.setWithLogicalExpire(prefix + 4L, stale, 0L, TimeUnit.SECONDS);
+        //别的前缀上同一个id的重建锁不影响这里
+        stringRedisTemplate.opsForValue().set(LOCK_CACHE_KEY + CACHE_SHOP_KEY + 4L, "1", 10, TimeUnit.SECONDS);
+
+        Map<Long, Shop> first = cacheClient.queryBatchWithLogicalExpire(prefix, Arrays.asList(4L, 5L, MISSING_ID), Shop.class,
+                recording(dbCalls), Shop::getId, 60L, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList(4L, 5L), new ArrayList<>(first.keySet()));
+        assertEquals("旧名字", first.get(4L).getName(), "逻辑过期时先返回旧值");
+        assertEquals(Arrays.asList(5L, MISSING_ID), dbCalls.get(0));
+
+        //后台重建完成后拿到新值
+        long deadline = System.currentTimeMillis() + 5000;
+        Shop rebuilt;
+        do {
+            TimeUnit.MILLISECONDS.sleep(50);
+            rebuilt = cacheClient.queryBatchWithLogicalExpire(prefix, Arrays.asList(4L), Shop.class,
+                    recording(dbCalls), Shop::getId, 60L, TimeUnit.SECONDS).get(4L);
+        } while ("旧名字".equals(rebuilt.getName()) && System.currentTimeMillis() < deadline);
+        assertEquals(shopService.getById(4L).getName(), rebuilt.getName());
+        assertEquals(Arrays.asList(4L), dbCalls.get(1));
+        stringRedisTemplate.delete(LOCK_CACHE_KEY + CACHE_SHOP_KEY + 4L);
+    }
+
+    private Function<List<Long>, List<Shop>> recording(List<List<Long>> dbCalls) {
+        return ids -> {
+            dbCalls.add(new ArrayList<>(ids));
+            return shopService.listByIds(ids);
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package com.djdp;
+
+import com.djdp.entity.Shop;
+import com.djdp.utils.BinaryCacheCodec;
+import com.djdp.utils.CacheCodec;
+import com.djdp.utils.JsonCacheCodec;
+import com.djdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 缓存编解码对比：同一个Shop分别用JSON和二进制编码，比较编码、解码耗时和序列化后的大小，
+ * 并校验两种编码都能原样还原。迭代次数通过系统属性调整，例如
+ * mvn test -Dtest=CacheCodecBenchmarkTest -Dbenchmark.iterations=1000000
+ */
+class CacheCodecBenchmarkTest {
+
+    private static final int ITERATIONS = Integer.getInteger("benchmark.iterations", 200000);
+
+    private final CacheCodec json = new JsonCacheCodec();
+
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    @Test
+    void testShopCodec() {
+        Shop shop = shop();
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(30).withNano(0);
+
+        for (CacheCodec codec : new CacheCodec[]{json, binary}) {
+            assertEquals(shop, codec.decode(codec.encode(shop), Shop.class));
+            RedisData redisData = codec.decodeWithExpire(codec.encodeWithExpire(shop, expireTime), Shop.class);
+            assertNotNull(redisData);
+            assertEquals(expireTime, redisData.getExpireTime());
+            assertEquals(shop, redisData.getData());
+        }
+        //不同格式的值互相解不出来，按未命中处理
+        assertNull(binary.decodeWithExpire(json.encodeWithExpire(shop, expireTime), Shop.class));
+        assertNull(json.decodeWithExpire(binary.encodeWithExpire(shop, expireTime), Shop.class));
+
+        Result jsonResult = measure(json, shop, expireTime);
+        Result binaryResult = measure(binary, shop, expireTime);
+
+        System.out.println("========== 缓存编解码对比(Shop, 逻辑过期) ==========");
+        System.out.printf("迭代次数=%d%n", ITERATIONS);
+        System.out.printf("%-8s %10s %14s %14s%n", "编码", "大小(bytes)", "编码(ns/op)", "解码(ns/op)");
+        System.out.printf("%-8s %10d %14.1f %14.1f%n", "JSON", jsonResult.size, jsonResult.encodeNanos, jsonResult.decodeNanos);
+        System.out.printf("%-8s %10d %14.1f %14.1f%n", "二进制", binaryResult.size, binaryResult.encodeNanos, binaryResult.decodeNanos);
+        System.out.printf("二进制大小为JSON的 %.1f%%%n", 100.0 * binaryResult.size / jsonResult.size);
+
+        assertTrue(binaryResult.size < jsonResult.size, "二进制编码没有比JSON小");
+    }
+
+    @Test
+    void testNullAndNonBeanValues() {
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(1).withNano(0);
+        RedisData redisData = binary.decodeWithExpire(binary.encodeWithExpire(null, expireTime), Shop.class);
+        assertNull(redisData);
+        Shop partial = new Shop().setId(7L).setName("只有名字");
+        assertEquals(partial, binary.decode(binary.encode(partial), Shop.class));
+    }
+
+    /**
+     * 先预热一轮再计时，结果累加到sink里防止被JIT优化掉
+     */
+    private static Result measure(CacheCodec codec, Shop shop, LocalDateTime expireTime) {
+        long sink = 0;
+        byte[] bytes = codec.encodeWithExpire(shop, expireTime);
+        for (int i = 0; i < ITERATIONS / 2; i++) {
+            sink += codec.encodeWithExpire(shop, expireTime).length;
+            sink += codec.decodeWithExpire(bytes, Shop.class).hashCode();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += codec.encodeWithExpire(shop, expireTime).length;
+        }
+        double encodeNanos = (double) (System.nanoTime() - begin) / ITERATIONS;
+        begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += codec.decodeWithExpire(bytes, Shop.class).hashCode();
+        }
+        double decodeNanos = (double) (System.nanoTime() - begin) / ITERATIONS;
+        assertNotEquals(0, sink);
+        return new Result(bytes.length, encodeNanos, decodeNanos);
+    }
+
+    private static Shop shop() {
+        return new Shop()
+                .setId(1L)
+                .setName("103茶餐厅")
+                .setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关")
+                .setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192)
+                .setY(30.316078)
+                .setAvgPrice(80L)
+                .setSold(4215)
+                .setComments(3035)
+                .setScore(37)
+                .setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+
+    private static class Result {
+        private final int size;
+        private final double encodeNanos;
+        private final double decodeNanos;
+
+        Result(int size, double encodeNanos, double decodeNanos) {
+            this.size = size;
+            this.encodeNanos = encodeNanos;
+            this.decodeNanos = decodeNanos;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.djdp;
+
+import com.djdp.dto.Result;
+import com.djdp.entity.Shop;
+import com.djdp.service.IShopService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.CacheClient;
+import com.djdp.utils.IdBloomFilter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static com.djdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * id布隆过滤器：重建后表里的id都能查到，不存在的id在查库之前被拦下且不缓存空值，新增的店铺立即可见
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class IdBloomFilterTest {
+
+    @Resource
+    private IdBloomFilter idBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @BeforeEach
+    void rebuild() throws InterruptedException {
+        idBloomFilter.rebuild(CACHE_SHOP_KEY);
+        //启动时的定时重建可能同时在跑，等到过滤器切换完成
+        long deadline = System.currentTimeMillis() + 10000;
+        while (idBloomFilter.needsRebuild(CACHE_SHOP_KEY, Long.MAX_VALUE)) {
+            assertTrue(System.currentTimeMillis() < deadline, "布隆过滤器没有建好");
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    @Test
+    void testExistingAndMissingIds() {
+        shopService.list().forEach(shop -> assertTrue(idBloomFilter.mightContain(CACHE_SHOP_KEY, shop.getId())));
+        List<Long> missing = LongStream.range(1_000_000L, 1_010_000L).boxed().collect(Collectors.toList());
+        int falsePositives = idBloomFilter.filter(CACHE_SHOP_KEY, missing).size();
+        assertTrue(falsePositives < 50, "误判率过高: " + falsePositives);
+    }
+
+    @Test
+    void testMissingIdSkipsDatabase() {
+        long missing = LongStream.range(2_000_000L, 2_001_000L)
+                .filter(id -> !idBloomFilter.mightContain(CACHE_SHOP_KEY, id))
+                .findFirst().orElseThrow(IllegalStateException::new);
+        AtomicInteger dbCalls = new AtomicInteger();
+        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, missing, Shop.class, id -> {
+            dbCalls.incrementAndGet();
+            return shopService.getById(id);
+        }, 10L, TimeUnit.MINUTES);
+        assertNull(shop);
+        //店铺详情走逻辑过期，同样先过布隆过滤器
+        assertNull(cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, missing, Shop.class, id -> {
+            dbCalls.incrementAndGet();
+            return shopService.getById(id);
+        }, 10L, TimeUnit.SECONDS));
+        assertEquals(0, dbCalls.get(), "不存在的id不应该查数据库");
+        assertFalse(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + missing), "不存在的id不应该缓存空值");
+    }
+
+    @Test
+    void testNewShopVisibleImmediately() {
+        Shop shop = new Shop()
+                .setName("布隆过滤器测试店")
+                .setTypeId(1L)
+                .setImages("")
+                .setAddress("测试路1号")
+                .setX(120.0)
+                .setY(30.0)
+                .setSold(0)
+                .setComments(0)
+                .setScore(50);
+        Result result = shopService.saveShop(shop);
+        assertTrue(result.getSuccess());
+        assertTrue(idBloomFilter.mightContain(CACHE_SHOP_KEY, shop.getId()));
+        Shop cached = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, shop.getId(), Shop.class,
+                shopService::getById, 10L, TimeUnit.MINUTES);
+        assertNotNull(cached);
+        assertEquals("布隆过滤器测试店", cached.getName());
+        //没有预热的新店铺，店铺详情在Redis未命中时查库并写回逻辑过期数据
+        cacheClient.invalidate(CACHE_SHOP_KEY + shop.getId());
+        assertTrue(shopService.queryById(shop.getId()).getSuccess());
+        assertTrue(stringRedisTemplate.hasKey(CACHE_SHOP_KEY + shop.getId()));
+    }
+}
@@ -0,0 +1,203 @@
+package com.djdp;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.djdp.dto.Result;
+import com.djdp.dto.SeckillStockSnapshot;
+import com.djdp.dto.UserDTO;
+import com.djdp.entity.Voucher;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.service.IVoucherService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.OrderStreamMonitor;
+import com.djdp.utils.UserHolder;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static com.djdp.utils.RedisConstants.STREAM_ORDERS_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀压测：内嵌Redis + H2(MySQL模式)，不依赖外部环境，笔记本上就能跑
+ * 打了load标签，默认的mvn test不跑；用 mvn test -Pload 单独运行，参数通过系统属性调整，
+ * 例如 mvn test -Pload -Dloadtest.users=5000 -Dloadtest.stock=1000
+ *   loadtest.users             并发用户数
+ *   loadtest.requests-per-user 每个用户的请求次数（大于1时同时验证一人一单）
+ *   loadtest.threads           压测线程数
+ *   loadtest.stock             秒杀库存
+ *   loadtest.drain-timeout     等待订单落库的最长时间，单位毫秒
+ * 输出吞吐量和延迟分位数，并校验：不超卖、没有重复买家、Redis/数据库/订单表三方一致
+ */
+@Tag("load")
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class SeckillLoadTest {
+
+    private static final int USERS = Integer.getInteger("loadtest.users", 2000);
+    private static final int REQUESTS_PER_USER = Integer.getInteger("loadtest.requests-per-user", 2);
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 200);
+    private static final int STOCK = Integer.getInteger("loadtest.stock", 500);
+    private static final long DRAIN_TIMEOUT = Long.getLong("loadtest.drain-timeout", 60000L);
+
+    /**
+     * 压测用户id从这里开始，避开hmdp.sql里的用户
+     */
+    private static final long USER_ID_BASE = 1_000_000L;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    @Value("${seckill.order.partitions:4}")
+    private int partitions;
+
+    @Test
+    void testSeckillUnderLoad() throws InterruptedException {
+        Long voucherId = createVoucher();
+
+        int total = USERS * REQUESTS_PER_USER;
+        long[] latencies = new long[total];
+        AtomicInteger index = new AtomicInteger();
+        AtomicInteger errors = new AtomicInteger();
+        //订单id -> 用户id
+        Map<Long, Long> accepted = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> rejected = new ConcurrentHashMap<>();
+
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(total);
+        //按轮次交错提交，同一用户的重复请求和其他用户的请求混在一起
+        for (int r = 0; r < REQUESTS_PER_USER; r++) {
+            for (int u = 0; u < USERS; u++) {
+                long userId = USER_ID_BASE + u;
+                es.submit(() -> {
+                    try {
+                        start.await();
+                        UserDTO user = new UserDTO();
+                        user.setId(userId);
+                        UserHolder.saveUser(user);
+                        long begin = System.nanoTime();
+                        Result result = voucherOrderService.seckillVoucher(voucherId);
+                        latencies[index.getAndIncrement()] = System.nanoTime() - begin;
+                        if (result.getSuccess()) {
+                            accepted.put((Long) result.getData(), userId);
+                        } else {
+                            rejected.computeIfAbsent(result.getErrorMsg(), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                        e.printStackTrace();
+                    } finally {
+                        UserHolder.removeUser();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        report(total, elapsed, Arrays.copyOf(latencies, index.get()), accepted.size(), rejected, errors.get());
+
+        //1.接口层面：没有异常、不超卖、库存充足时卖完、没有重复买家
+        assertEquals(0, errors.get(), "秒杀接口抛出异常");
+        assertTrue(accepted.size() <= STOCK, "超卖: 成功" + accepted.size() + "单, 库存" + STOCK);
+        assertEquals(Math.min(USERS, STOCK), accepted.size(), "库存没有卖完或有用户没抢到");
+        assertEquals(accepted.size(), new HashSet<>(accepted.values()).size(), "同一用户抢到多单");
+
+        //2.等待订单全部落库
+        long soldInDb = awaitDrained(voucherId, accepted.size());
+
+        //3.落库后：订单表、数据库库存、Redis库存三方一致
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        assertEquals(accepted.size(), soldInDb, "订单表订单数和抢到的订单数不一致");
+        assertEquals(accepted.keySet(), orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()),
+                "订单表和抢到的订单id不一致");
+        assertEquals(orders.size(), orders.stream().map(VoucherOrder::getUserId).distinct().count(), "订单表有重复买家");
+        int stockInDb = seckillVoucherService.getById(voucherId).getStock();
+        assertEquals(STOCK - accepted.size(), stockInDb, "数据库库存不正确");
+        SeckillStockSnapshot snapshot = seckillVoucherService.getRedisStockSnapshot(voucherId);
+        assertNotNull(snapshot);
+        assertEquals(STOCK - accepted.size(), snapshot.getRemaining(), "Redis剩余库存不正确");
+        assertEquals(accepted.size(), snapshot.getBuyers(), "Redis已购用户数不正确");
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测秒杀券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    /**
+     * 等到订单stream消费完且订单表数量达到预期，超时后返回当时的订单数
+     */
+    private long awaitDrained(Long voucherId, int expected) throws InterruptedException {
+        String queueName = STREAM_ORDERS_KEY + voucherId % partitions;
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        long begin = System.currentTimeMillis();
+        long count;
+        do {
+            count = voucherOrderService.count(new QueryWrapper<VoucherOrder>().eq("voucher_id", voucherId));
+            if (count >= expected && orderStreamMonitor.isDrained(queueName)) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(100);
+        } while (System.currentTimeMillis() < deadline);
+        System.out.printf("订单落库耗时: %d ms%n", System.currentTimeMillis() - begin);
+        return count;
+    }
+
+    private static void report(int total, long elapsedNanos, long[] latencies, int accepted,
+                               Map<String, AtomicInteger> rejected, int errors) {
+        Arrays.sort(latencies);
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("========== 秒杀压测 ==========");
+        System.out.printf("用户数=%d 每用户请求=%d 线程数=%d 库存=%d%n", USERS, REQUESTS_PER_USER, THREADS, STOCK);
+        System.out.printf("请求数=%d 耗时=%.3f s 吞吐量=%.1f req/s%n", total, seconds, total / seconds);
+        System.out.printf("延迟(ms) p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), percentile(latencies, 1.0));
+        System.out.printf("成功=%d 失败=%s 异常=%d%n", accepted, rejected, errors);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,166 @@
+package com.djdp;
+
+import com.djdp.dto.Result;
+import com.djdp.dto.UserDTO;
+import com.djdp.entity.Voucher;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.BuyerDedupeMode;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.service.IVoucherService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.SeckillKeys;
+import com.djdp.utils.UserHolder;
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 分段库存（2个分段）下的取消与重新抢购：用户在别的分段扣到库存后，取消订单把库存补回他的首选分段，
+ * 已购记录始终在首选分段，不会因为某个分段被补回库存而再买一次；限购份数也按首选分段的记录计算，跨分段不会超买
+ */
+@SpringBootTest(properties = {"seckill.segment.buckets=2", "seckill.segment.threshold=2"})
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class SegmentedSeckillCancelTest {
+
+    /**
+     * 两个用户的首选分段都是1
+     */
+    private static final long USER_ID = 3_000_001L;
+    private static final long NEIGHBOR_ID = 3_000_003L;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @ParameterizedTest
+    @EnumSource(value = BuyerDedupeMode.class, names = {"SET", "BITMAP", "BLOOM"})
+    void testCancelThenRebuy(BuyerDedupeMode dedupe) throws InterruptedException {
+        //每个分段1份库存
+        Long voucherId = createVoucher(2, dedupe, 1);
+        assertEquals(2, seckillVoucherService.getStockSegments(voucherId));
+        //1.邻居买走分段1的库存，用户只能在分段0扣到
+        Long neighborOrder = (Long) seckill(voucherId, NEIGHBOR_ID).getData();
+        assertNotNull(neighborOrder);
+        Long orderId = (Long) seckill(voucherId, USER_ID).getData();
+        assertNotNull(orderId);
+        awaitPersisted(neighborOrder);
+        awaitPersisted(orderId);
+
+        //2.取消邻居的订单，库存补回分段1；用户已经买过，不能借补回的库存再买一次
+        assertEquals(1, voucherOrderService.cancelUnpaidOrders(Collections.singletonList(neighborOrder)).size());
+        assertEquals(1, seckillVoucherService.getRedisStockSnapshot(voucherId).getRemaining());
+        assertEquals("不能重复下单", seckill(voucherId, USER_ID).getErrorMsg());
+
+        //3.取消用户自己的订单后可以重新抢购
+        assertEquals(1, voucherOrderService.cancelUnpaidOrders(Collections.singletonList(orderId)).size());
+        assertEquals(2, seckillVoucherService.getRedisStockSnapshot(voucherId).getRemaining());
+        assertEquals(0, seckillVoucherService.getRedisStockSnapshot(voucherId).getBuyers());
+        Result again = seckill(voucherId, USER_ID);
+        assertTrue(again.getSuccess(), again.getErrorMsg());
+        awaitPersisted((Long) again.getData());
+        assertEquals("不能重复下单", seckill(voucherId, USER_ID).getErrorMsg());
+        assertEquals(1, seckillVoucherService.getById(voucherId).getStock());
+    }
+
+    /**
+     * 脚本一次只操作一个分段，KEYS都要落在同一个slot上，Redis Cluster才能执行
+     */
+    @Test
+    void testBucketKeysShareSlot() {
+        for (int segments : new int[]{1, 2}) {
+            for (int bucket = 0; bucket < segments; bucket++) {
+                List<String> keys = SeckillKeys.bucketKeys(1L, bucket, segments);
+                keys.add(SeckillKeys.buyerKey(1L, bucket, segments, USER_ID));
+                int slot = SlotHash.getSlot(keys.get(0));
+                for (String key : keys) {
+                    assertEquals(slot, SlotHash.getSlot(key), key);
+                }
+            }
+        }
+    }
+
+    /**
+     * 每人限购2份：用户在首选分段买到第一份，首选分段被买空后第二份在另一个分段扣到，第三份被拒绝
+     */
+    @Test
+    void testQuotaAcrossBuckets() throws InterruptedException {
+        //每个分段3份库存
+        Long voucherId = createVoucher(6, BuyerDedupeMode.SET, 2);
+        Long first = (Long) seckill(voucherId, USER_ID).getData();
+        assertNotNull(first);
+        //邻居买走分段1剩下的两份
+        assertNotNull(seckill(voucherId, NEIGHBOR_ID).getData());
+        assertNotNull(seckill(voucherId, NEIGHBOR_ID).getData());
+        Long second = (Long) seckill(voucherId, USER_ID).getData();
+        assertNotNull(second);
+        assertEquals("已达到每人限购数量", seckill(voucherId, USER_ID).getErrorMsg());
+        awaitPersisted(first);
+        awaitPersisted(second);
+        assertEquals(1, voucherOrderService.getById(first).getSeq());
+        assertEquals(2, voucherOrderService.getById(second).getSeq());
+        assertEquals(2, seckillVoucherService.getRedisStockSnapshot(voucherId).getRemaining());
+
+        //取消第一份，序号和库存还回首选分段，用户只能再买一份
+        assertEquals(1, voucherOrderService.cancelUnpaidOrders(Collections.singletonList(first)).size());
+        Long third = (Long) seckill(voucherId, USER_ID).getData();
+        assertNotNull(third);
+        assertEquals("已达到每人限购数量", seckill(voucherId, USER_ID).getErrorMsg());
+        awaitPersisted(third);
+        assertEquals(1, voucherOrderService.getById(third).getSeq());
+    }
+
+    private Long createVoucher(int stock, BuyerDedupeMode dedupe, int quota) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("分段取消测试券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBuyerDedupe(dedupe.getCode());
+        voucher.setUserQuota(quota);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private Result seckill(Long voucherId, long userId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private void awaitPersisted(Long orderId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (voucherOrderService.getById(orderId) == null) {
+            assertTrue(System.currentTimeMillis() < deadline, "订单没有落库: " + orderId);
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+}
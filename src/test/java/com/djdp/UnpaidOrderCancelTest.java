@@ -0,0 +1,158 @@
+package com.djdp;
+
+import com.djdp.dto.Result;
+import com.djdp.dto.SeckillOrderResult;
+import com.djdp.dto.UserDTO;
+import com.djdp.entity.Voucher;
+import com.djdp.entity.VoucherOrder;
+import com.djdp.enums.BuyerDedupeMode;
+import com.djdp.enums.SeckillOrderStatus;
+import com.djdp.service.ISeckillVoucherService;
+import com.djdp.service.IVoucherOrderService;
+import com.djdp.service.IVoucherService;
+import com.djdp.support.SeckillTestEnvironment;
+import com.djdp.utils.UserHolder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.djdp.utils.RedisConstants.SECKILL_RESULT_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 超时未支付订单取消后：订单置为已取消，数据库和Redis库存退回，同一用户可以重新抢购；限购多份时释放对应的份数
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class UnpaidOrderCancelTest {
+
+    private static final long USER_ID = 2_000_000L;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @ParameterizedTest
+    @EnumSource(value = BuyerDedupeMode.class, names = {"SET", "BITMAP", "BLOOM"})
+    void testCancelReturnsStock(BuyerDedupeMode dedupe) throws InterruptedException {
+        Long voucherId = createVoucher(1, dedupe, 1);
+        Result first = seckill(voucherId);
+        assertTrue(first.getSuccess());
+        Long orderId = (Long) first.getData();
+        assertEquals("不能重复下单", seckill(voucherId).getErrorMsg());
+        awaitPersisted(orderId);
+
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(Collections.singletonList(orderId));
+        assertEquals(1, cancelled.size());
+        assertEquals(VoucherOrder.STATUS_CANCELLED, voucherOrderService.getById(orderId).getStatus());
+        assertEquals(1, seckillVoucherService.getById(voucherId).getStock());
+        assertEquals(1, seckillVoucherService.getRedisStockSnapshot(voucherId).getRemaining());
+        assertEquals(0, seckillVoucherService.getRedisStockSnapshot(voucherId).getBuyers());
+        //结果记录过期后按订单表回答，已取消的订单不能报成下单成功
+        stringRedisTemplate.delete(SECKILL_RESULT_KEY + orderId);
+        assertEquals(SeckillOrderStatus.CANCELLED.getCode(), queryOrderStatus(orderId).getStatus());
+        //重复取消不会再退库存
+        assertTrue(voucherOrderService.cancelUnpaidOrders(Collections.singletonList(orderId)).isEmpty());
+
+        //取消后可以重新抢购，新订单能落库
+        Result again = seckill(voucherId);
+        assertTrue(again.getSuccess(), again.getErrorMsg());
+        awaitPersisted((Long) again.getData());
+        assertEquals(0, seckillVoucherService.getById(voucherId).getStock());
+    }
+
+    /**
+     * 每人限购2份：第三份被拒绝，取消其中一份后释放它的序号，可以再买一份
+     */
+    @Test
+    void testQuotaReleasedByCancel() throws InterruptedException {
+        Long voucherId = createVoucher(5, BuyerDedupeMode.SET, 2);
+        Long first = (Long) seckill(voucherId).getData();
+        Long second = (Long) seckill(voucherId).getData();
+        assertNotNull(first);
+        assertNotNull(second);
+        assertEquals("已达到每人限购数量", seckill(voucherId).getErrorMsg());
+        awaitPersisted(first);
+        awaitPersisted(second);
+        assertEquals(1, voucherOrderService.getById(first).getSeq());
+        assertEquals(2, voucherOrderService.getById(second).getSeq());
+        assertEquals(3, seckillVoucherService.getById(voucherId).getStock());
+
+        assertEquals(1, voucherOrderService.cancelUnpaidOrders(Collections.singletonList(first)).size());
+        assertEquals(4, seckillVoucherService.getRedisStockSnapshot(voucherId).getRemaining());
+        Long third = (Long) seckill(voucherId).getData();
+        assertNotNull(third);
+        awaitPersisted(third);
+        assertEquals(1, voucherOrderService.getById(third).getSeq());
+        assertEquals("已达到每人限购数量", seckill(voucherId).getErrorMsg());
+        assertEquals(2, seckillVoucherService.getRedisStockSnapshot(voucherId).getBuyers());
+    }
+
+    private Long createVoucher(int stock, BuyerDedupeMode dedupe, int quota) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("超时取消测试券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBuyerDedupe(dedupe.getCode());
+        voucher.setUserQuota(quota);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    private Result seckill(Long voucherId) {
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+        try {
+            return voucherOrderService.seckillVoucher(voucherId);
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private SeckillOrderResult queryOrderStatus(Long orderId) {
+        UserDTO user = new UserDTO();
+        user.setId(USER_ID);
+        UserHolder.saveUser(user);
+        try {
+            Result result = (Result) voucherOrderService.queryOrderStatus(orderId, null).getResult();
+            assertTrue(result.getSuccess(), result.getErrorMsg());
+            return (SeckillOrderResult) result.getData();
+        } finally {
+            UserHolder.removeUser();
+        }
+    }
+
+    private void awaitPersisted(Long orderId) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (voucherOrderService.getById(orderId) == null) {
+            assertTrue(System.currentTimeMillis() < deadline, "订单没有落库: " + orderId);
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+}
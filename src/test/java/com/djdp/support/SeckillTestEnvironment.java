@@ -0,0 +1,161 @@
+package com.djdp.support;
+
+import cn.hutool.core.io.resource.ResourceUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Author: JhonDai
+ * Date: 2023/03/11/10:00
+ * Version: 1.0
+ * Description:压测环境，在Spring容器创建连接之前：
+ * 1.在spring.redis.port上启动内嵌Redis（真实的redis-server进程，lua、stream都可用），整个测试进程只启动一次；
+ * 2.把 db/hmdp.sql 改写成H2能执行的语句，导入spring.datasource.url指向的内存库。
+ * 用法：@ContextConfiguration(initializers = SeckillTestEnvironment.class) 配合 @ActiveProfiles("test")
+ */
+@Slf4j
+public class SeckillTestEnvironment implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+    private static RedisServer redisServer;
+    private static boolean seeded;
+
+    @Override
+    public void initialize(ConfigurableApplicationContext context) {
+        Environment env = context.getEnvironment();
+        try {
+            startRedis(env.getProperty("spring.redis.port", Integer.class, 16379));
+            seed(env.getProperty("spring.datasource.url"),
+                    env.getProperty("spring.datasource.username"),
+                    env.getProperty("spring.datasource.password", ""));
+        } catch (IOException | SQLException e) {
+            throw new IllegalStateException("压测环境启动失败", e);
+        }
+    }
+
+    private static synchronized void startRedis(int port) throws IOException {
+        if (redisServer != null) {
+            return;
+        }
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                redisServer.stop();
+            } catch (IOException e) {
+                log.error("内嵌Redis停止失败", e);
+            }
+        }));
+        log.info("内嵌Redis已启动, port={}", port);
+    }
+
+    private static synchronized void seed(String url, String username, String password) throws SQLException {
+        if (seeded) {
+            return;
+        }
+        String script = ResourceUtil.readStr("db/hmdp.sql", StandardCharsets.UTF_8);
+        try (Connection connection = DriverManager.getConnection(url, username, password);
+             Statement statement = connection.createStatement()) {
+            for (String sql : toH2(script)) {
+                statement.execute(sql);
+            }
+        }
+        seeded = true;
+        log.info("hmdp.sql已导入H2, url={}", url);
+    }
+
+    private static final Pattern TABLE_OPTIONS = Pattern.compile("\\)\\s*ENGINE\\s*=.*$");
+    private static final Pattern COLUMN_CHARSET = Pattern.compile("CHARACTER SET \\w+ COLLATE \\w+ ");
+    private static final Pattern COLUMN_COMMENT = Pattern.compile(" COMMENT '(?:[^'\\\\]|\\\\.)*'");
+    private static final Pattern UNIQUE_INDEX = Pattern.compile("UNIQUE INDEX (`\\w+`)\\((.*)\\) USING BTREE");
+
+    /**
+     * Navicat导出的MySQL脚本改写成H2(MySQL模式)可执行的语句：
+     * 去掉表选项、列字符集、注释、UNSIGNED/ZEROFILL、ON UPDATE、普通索引，YEAR改为SMALLINT，零值时间默认值改为CURRENT_TIMESTAMP，
+     * 唯一索引改为唯一约束，字符串里的反斜杠转义改为SQL标准写法
+     */
+    static List<String> toH2(String script) {
+        List<String> statements = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        for (String line : script.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("--") || trimmed.startsWith("SET ")
+                    || trimmed.startsWith("/*") || trimmed.startsWith("*/") || (current.length() == 0 && !isStatementStart(trimmed))) {
+                continue;
+            }
+            if (trimmed.startsWith("INDEX ")) {
+                //普通索引对压测正确性没有影响，去掉后把上一行末尾的逗号也去掉
+                int comma = current.lastIndexOf(",");
+                current.setLength(comma);
+                current.append('\n');
+                continue;
+            }
+            if (trimmed.startsWith("INSERT ")) {
+                line = unescape(line);
+            } else {
+                line = COLUMN_CHARSET.matcher(line).replaceAll("");
+                line = COLUMN_COMMENT.matcher(line).replaceAll("");
+                line = TABLE_OPTIONS.matcher(line).replaceAll(");");
+                line = UNIQUE_INDEX.matcher(line).replaceAll("CONSTRAINT $1 UNIQUE ($2)");
+                line = line.replace(" USING BTREE", "")
+                        .replace(" UNSIGNED", "")
+                        .replace(" ZEROFILL", "")
+                        .replace(" ON UPDATE CURRENT_TIMESTAMP", "")
+                        .replace("DEFAULT '0000-00-00 00:00:00'", "DEFAULT CURRENT_TIMESTAMP")
+                        .replace("` year ", "` smallint ");
+            }
+            current.append(line).append('\n');
+            if (line.trim().endsWith(";")) {
+                String sql = current.toString().trim();
+                statements.add(sql.substring(0, sql.length() - 1));
+                current.setLength(0);
+            }
+        }
+        return statements;
+    }
+
+    private static boolean isStatementStart(String line) {
+        return line.startsWith("DROP ") || line.startsWith("CREATE ") || line.startsWith("INSERT ");
+    }
+
+    /**
+     * MySQL字符串中的 \' \" \\ \r \n 转成H2认识的形式
+     */
+    private static String unescape(String line) {
+        StringBuilder sb = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c != '\\' || i + 1 == line.length()) {
+                sb.append(c);
+                continue;
+            }
+            char next = line.charAt(++i);
+            switch (next) {
+                case '\'':
+                    sb.append("''");
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                default:
+                    sb.append(next);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.djdp.utils;
+
+import com.djdp.entity.Shop;
+import com.djdp.support.SeckillTestEnvironment;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 逻辑过期重建的节点内合并：热点key过期时并发请求都拿到旧值，只有一个请求去抢分布式锁，数据库只查一次；
+ * 放在utils包下，用包内可见的pendingRebuild等待重建完成
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+@ContextConfiguration(initializers = SeckillTestEnvironment.class)
+class CacheRebuildSingleFlightTest {
+
+    private static final int CALLERS = 50;
+
+    private static final String PREFIX = "test:flight:";
+
+    private static final long SHOP_ID = 900001L;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void testConcurrentCallersShareOneRebuild() throws Exception {
+        String key = PREFIX + SHOP_ID;
+        cacheClient.setWithLogicalExpire(key, shop("旧名字"), 0L, TimeUnit.SECONDS);
+        double locked = count("locked");
+        double lockFailed = count("lock_failed");
+        double coalesced = count("coalesced");
+
+        AtomicInteger dbCalls = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(CALLERS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Shop>> results = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            results.add(es.submit(() -> {
+                start.await();
+                return cacheClient.queryWithLogicalExpire(PREFIX, SHOP_ID, Shop.class, id -> {
+                    dbCalls.incrementAndGet();
+                    sleep(500);
+                    return shop("新名字");
+                }, 60L, TimeUnit.SECONDS);
+            }));
+        }
+        start.countDown();
+        for (Future<Shop> result : results) {
+            assertEquals("旧名字", result.get(5, TimeUnit.SECONDS).getName(), "重建期间应该返回旧值");
+        }
+        es.shutdown();
+        cacheClient.pendingRebuild(key).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, dbCalls.get(), "数据库只应该查一次");
+        assertEquals(1, count("locked") - locked, "只应该有一个请求抢到锁");
+        assertEquals(0, count("lock_failed") - lockFailed, "本节点不应该有第二个请求去抢锁");
+        assertEquals(CALLERS - 1, count("coalesced") - coalesced);
+        assertEquals("新名字", cacheClient.queryWithLogicalExpire(PREFIX, SHOP_ID, Shop.class,
+                id -> shop("不应该再查"), 60L, TimeUnit.SECONDS).getName());
+    }
+
+    private double count(String result) {
+        return meterRegistry.counter("cache.rebuild", "result", result).count();
+    }
+
+    private static Shop shop(String name) {
+        return new Shop().setId(SHOP_ID).setName(name);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}